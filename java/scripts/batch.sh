@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Runs a script of commands without the menus, results as JSON lines on
+# standard out. Usage: batch.sh [script]  (standard input when omitted)
+
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+mvn -q -f $DIR/../pom.xml package
+
+CDS=""
+if [ -f $DIR/../target/retail.jsa ]; then
+   CDS="-XX:SharedArchiveFile=$DIR/../target/retail.jsa"
+fi
+
+java $CDS -cp $DIR/../target/retail.jar BatchRunner $USER"_DB" $PGPORT $USER "${1:--}"
@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Builds an AppCDS archive of the classes loaded while starting up,
+# connecting and exiting, so later runs map them instead of loading them.
+# Rebuild it after every change to the program or the JDK.
+
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+mvn -q -f $DIR/../pom.xml package
+
+# training run: connect, then choose 9 (exit) at the main menu
+echo 9 | java -XX:ArchiveClassesAtExit=$DIR/../target/retail.jsa \
+   -jar $DIR/../target/retail.jar $USER"_DB" $PGPORT $USER > /dev/null
+
+echo "Archive written to $DIR/../target/retail.jsa"
@@ -1,13 +1,20 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# use JAVA_HOME when set (JDK 17 or newer), the JDK on the PATH otherwise
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Retail.java
+mvn -q -f $DIR/../pom.xml package
+
+# use the class-data archive built by cds.sh, if there is one
+CDS=""
+if [ -f $DIR/../target/retail.jsa ]; then
+   CDS="-XX:SharedArchiveFile=$DIR/../target/retail.jsa"
+fi
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER
-
+java $CDS -jar $DIR/../target/retail.jar $USER"_DB" $PGPORT $USER
@@ -0,0 +1,16 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Starts a throwaway PostgreSQL server with the schema and generated data
+# and prints "<dbname> <port> <user>" for the other scripts and LoadDriver.
+# The server is removed when standard input is closed (Ctrl-D).
+# Set PGBIN to the directory of initdb and pg_ctl when they are not on the
+# PATH; sizes are set with -Dtestdb.users, -Dtestdb.stores and so on.
+
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+mvn -q -f $DIR/../pom.xml package
+
+java -Dtestdb.sqlDir=$DIR/../../sql/src "$@" -cp "$DIR/../target/retail.jar:$DIR/../target/lib/*" TestDatabase
@@ -0,0 +1,386 @@
+/*
+ * Scripted batch mode
+ * ===================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs a script of commands over one session, without the
+ * interactive menus. One command per line, fields separated by blanks,
+ * double quotes around fields that contain blanks, '#' starts a comment:
+ *
+ *    login <userID> <name> <password>
+ *    order <storeID> <productName> <units> [requestKey]
+ *    update <storeID> <productName> <units> <price>
+ *    view stores
+ *    view products <storeID>
+ *    view orders
+ *
+ * Commands run in script order. Consecutive views are independent of each
+ * other, so they are sent to the server together and cost one round trip;
+ * any other command waits for the views before it. Every command prints
+ * one JSON object on a line of its own, in script order.
+ *
+ */
+public class BatchRunner {
+   private final Retail esql;
+   private final PrintStream out;
+   // views sent together in one round trip, at most.
+   private final int pipelineDepth;
+   private final List<Command> pending = new ArrayList<Command>();
+   private String userType = null;
+   private int failures = 0;
+
+   // one line of the script.
+   private static class Command {
+      final int line;
+      final List<String> fields;
+      String result;
+
+      Command(int line, List<String> fields) {
+         this.line = line;
+         this.fields = fields;
+      }
+
+      String name() {
+         return this.fields.get(0).equals("view") && this.fields.size() > 1 ? "view " + this.fields.get(1) : this.fields.get(0);
+      }
+   }
+
+   /**
+    * Creates a new runner
+    *
+    * @param esql the session the commands run on
+    * @param out where the results are printed
+    * @param pipelineDepth the number of views sent in one round trip, at most
+    */
+   public BatchRunner(Retail esql, PrintStream out, int pipelineDepth) {
+      this.esql = esql;
+      this.out = out;
+      this.pipelineDepth = Math.max(1, pipelineDepth);
+   }//end BatchRunner
+
+   /**
+    * Runs every command of a script.
+    *
+    * @param script the script
+    * @return the number of commands that failed
+    * @throws java.io.IOException when failed to read the script
+    */
+   public int run(BufferedReader script) throws IOException {
+      this.esql.setOperation("batch");
+      int lineNumber = 0;
+      for (String line = script.readLine(); line != null; line = script.readLine()) {
+         ++lineNumber;
+         List<String> fields = split(line);
+         if (fields.isEmpty())
+            continue;
+         Command command = new Command(lineNumber, fields);
+         if (fields.get(0).equals("view")) {
+            this.pending.add(command);
+            if (this.pending.size() >= this.pipelineDepth)
+               flushViews();
+            continue;
+         }
+         flushViews();
+         try{
+            command.result = execute(command);
+         }catch (Exception e){
+            command.result = error(e.getMessage());
+         }
+         print(command);
+      }
+      flushViews();
+      return this.failures;
+   }//end run
+
+   // runs a command other than a view.
+   private String execute(Command c) throws SQLException {
+      List<String> f = c.fields;
+      String command = f.get(0);
+      if (command.equals("login")) {
+         need(c, 4);
+         this.userType = null;
+         if (!Retail.authenticate(this.esql, f.get(2), f.get(1), f.get(3)))
+            return error("invalid credentials");
+         this.esql.userId = f.get(1);
+         List<List<String>> res = this.esql.executeQueryAndReturnResult(
+            String.format("SELECT type FROM Users WHERE userID = '%s'", f.get(1)));
+         this.userType = res.get(0).get(0).toLowerCase();
+         return "\"userID\":" + quote(f.get(1)) + ",\"type\":" + quote(this.userType);
+      }
+      if (command.equals("order")) {
+         need(c, 4);
+         loggedIn();
+         if (!this.userType.equals("customer"))
+            return error("must be logged in as a customer");
+         int orderNumber = Retail.submitOrder(this.esql, Integer.parseInt(this.esql.userId), Integer.parseInt(f.get(1)), f.get(2),
+                                              Integer.parseInt(f.get(3)), f.size() > 4 ? f.get(4) : null);
+         this.esql.clearStore();
+         switch (orderNumber) {
+            case Retail.ORDER_OUT_OF_RANGE: return error("store not in range");
+            case Retail.ORDER_NO_STOCK: return error("not enough inventory in store");
+            case Retail.ORDER_NO_PRODUCT: return error("product not found in store");
+            default: return "\"orderNumber\":" + orderNumber;
+         }
+      }
+      if (command.equals("update")) {
+         need(c, 5);
+         loggedIn();
+         int storeID = Integer.parseInt(f.get(1));
+         if (this.userType.equals("manager")) {
+            String query = String.format("SELECT storeID FROM Store WHERE storeID = '%d' AND managerID = '%s'", storeID, this.esql.userId);
+            if (this.esql.executeQuery(query) == 0)
+               return error("store is not managed by this user");
+         }else if (!this.userType.equals("admin"))
+            return error("must be logged in as a manager or admin");
+         Retail.submitProductUpdate(this.esql, Integer.parseInt(this.esql.userId), storeID, f.get(2),
+                                    Integer.parseInt(f.get(3)), Integer.parseInt(f.get(4)));
+         this.esql.clearStore();
+         return "";
+      }
+      return error("unknown command");
+   }//end execute
+
+   /*
+    * Runs the pending views. The store and product views of one shard are
+    * pipelined, the order history goes through its cache.
+    **/
+   private void flushViews() {
+      if (this.pending.isEmpty())
+         return;
+      // pipelined queries, by the store whose shard they run on (0 for any).
+      Map<Integer, List<Command>> groups = new LinkedHashMap<Integer, List<Command>>();
+      Map<Command, String> queries = new LinkedHashMap<Command, String>();
+      this.esql.setReadOnly(true);
+      for (Command c : this.pending) {
+         try{
+            String query = viewQuery(c);
+            if (query == null) {
+               List<List<String>> rows = Retail.recentOrders(this.esql, Integer.parseInt(this.esql.userId));
+               List<String> header = this.esql.getOrderHistory().header();
+               c.result = rows(header != null ? header : new ArrayList<String>(), rows);
+               continue;
+            }
+            int store = this.esql.isSharded() && c.fields.get(1).equals("products") ? Integer.parseInt(c.fields.get(2)) : 0;
+            if (!groups.containsKey(store))
+               groups.put(store, new ArrayList<Command>());
+            groups.get(store).add(c);
+            queries.put(c, query);
+         }catch (Exception e){
+            c.result = error(e.getMessage());
+         }
+      }
+
+      for (Map.Entry<Integer, List<Command>> group : groups.entrySet()) {
+         if (group.getKey() != 0)
+            this.esql.setStore(group.getKey());
+         List<String> batch = new ArrayList<String>();
+         for (Command c : group.getValue())
+            batch.add(queries.get(c));
+         try{
+            List<List<String>> headers = new ArrayList<List<String>>();
+            List<List<List<String>>> results = this.esql.executeQueriesAndReturnResult(batch, headers);
+            for (int i = 0; i < results.size(); ++i)
+               group.getValue().get(i).result = rows(headers.get(i), results.get(i));
+         }catch (SQLException e){
+            // one failed query aborts the rest, so they are run one by one to tell which.
+            for (Command c : group.getValue()) {
+               try{
+                  List<String> query = new ArrayList<String>();
+                  query.add(queries.get(c));
+                  List<List<String>> headers = new ArrayList<List<String>>();
+                  List<List<String>> result = this.esql.executeQueriesAndReturnResult(query, headers).get(0);
+                  c.result = rows(headers.get(0), result);
+               }catch (Exception e2){
+                  c.result = error(e2.getMessage());
+               }
+            }
+         }
+         this.esql.clearStore();
+      }
+      this.esql.setReadOnly(false);
+
+      for (Command c : this.pending)
+         print(c);
+      this.pending.clear();
+   }//end flushViews
+
+   // the query of a view, or null for the order history.
+   private String viewQuery(Command c) {
+      need(c, 2);
+      loggedIn();
+      String view = c.fields.get(1);
+      if (view.equals("stores"))
+         return Retail.storesInRangeQuery(this.esql.userId);
+      if (view.equals("products")) {
+         need(c, 3);
+         return "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock Where storeID = " + Integer.parseInt(c.fields.get(2));
+      }
+      if (view.equals("orders")) {
+         if (!this.userType.equals("customer"))
+            throw new IllegalArgumentException("must be logged in as a customer");
+         return null;
+      }
+      throw new IllegalArgumentException("unknown view");
+   }//end viewQuery
+
+   private void need(Command c, int fields) {
+      if (c.fields.size() < fields)
+         throw new IllegalArgumentException("missing arguments");
+   }
+
+   private void loggedIn() {
+      if (this.userType == null)
+         throw new IllegalArgumentException("not logged in");
+   }
+
+   private void print(Command c) {
+      boolean ok = !c.result.startsWith("\"error\":");
+      if (!ok)
+         ++this.failures;
+      StringBuilder sb = new StringBuilder();
+      sb.append("{\"line\":").append(c.line)
+        .append(",\"command\":").append(quote(c.name()))
+        .append(",\"status\":").append(ok ? "\"ok\"" : "\"error\"");
+      if (!c.result.isEmpty())
+         sb.append(',').append(c.result);
+      this.out.println(sb.append('}'));
+   }//end print
+
+   private static String error(String message) {
+      return "\"error\":" + quote(message == null ? "failed" : message);
+   }
+
+   private static String rows(List<String> header, List<List<String>> rows) {
+      StringBuilder sb = new StringBuilder("\"columns\":[");
+      for (int i = 0; i < header.size(); ++i)
+         sb.append(i > 0 ? "," : "").append(quote(header.get(i)));
+      sb.append("],\"rows\":[");
+      for (int r = 0; r < rows.size(); ++r) {
+         sb.append(r > 0 ? ",[" : "[");
+         List<String> row = rows.get(r);
+         for (int i = 0; i < row.size(); ++i)
+            sb.append(i > 0 ? "," : "").append(quote(row.get(i)));
+         sb.append(']');
+      }
+      return sb.append(']').toString();
+   }//end rows
+
+   // a JSON string, or null.
+   private static String quote(String value) {
+      if (value == null)
+         return "null";
+      StringBuilder sb = new StringBuilder("\"");
+      for (int i = 0; i < value.length(); ++i) {
+         char ch = value.charAt(i);
+         switch (ch) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+               if (ch < 0x20)
+                  sb.append(String.format("\\u%04x", (int) ch));
+               else
+                  sb.append(ch);
+         }
+      }
+      return sb.append('"').toString();
+   }//end quote
+
+   /*
+    * Splits a script line into fields at blanks. A field in double quotes
+    * may contain blanks, "" inside it is a quote.
+    **/
+   static List<String> split(String line) {
+      List<String> fields = new ArrayList<String>();
+      int i = 0;
+      int n = line.length();
+      while (i < n) {
+         char ch = line.charAt(i);
+         if (Character.isWhitespace(ch)) {
+            ++i;
+            continue;
+         }
+         if (ch == '#')
+            break;
+         StringBuilder field = new StringBuilder();
+         if (ch == '"') {
+            for (++i; i < n; ++i) {
+               if (line.charAt(i) == '"') {
+                  if (i + 1 < n && line.charAt(i + 1) == '"')
+                     ++i;
+                  else
+                     break;
+               }
+               field.append(line.charAt(i));
+            }
+            ++i;
+         }else{
+            while (i < n && !Character.isWhitespace(line.charAt(i)))
+               field.append(line.charAt(i++));
+         }
+         fields.add(field.toString());
+      }
+      return fields;
+   }//end split
+
+   /**
+    * Runs a script from a file or standard input.
+    *
+    * @param args <dbname> <port> <user> [script|-]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BatchRunner.class.getName () +
+            " <dbname> <port> <user> [script|-]");
+         return;
+      }//end if
+
+      // results go to standard out, everything else to standard error.
+      PrintStream out = System.out;
+      System.setOut(System.err);
+      Retail esql = null;
+      int failures = 0;
+      try{
+         esql = new Retail (args[0], args[1], args[2], "");
+         InputStream input = args.length > 3 && !args[3].equals("-") ? new FileInputStream(args[3]) : System.in;
+         BufferedReader script = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+         BatchRunner runner = new BatchRunner(esql, out, Integer.getInteger("batch.pipelineDepth", 32));
+         long start = System.currentTimeMillis();
+         failures = runner.run(script);
+         out.flush();
+         System.err.println(String.format("Batch finished in %d ms, %d command(s) failed", System.currentTimeMillis() - start, failures));
+         script.close();
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+         failures = 1;
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }
+      System.exit(failures > 0 ? 1 : 0);
+   }//end main
+
+}//end BatchRunner
@@ -0,0 +1,477 @@
+/*
+ * Change-data capture of inventory and order events
+ * =================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class publishes the changes made by the write paths of Retail as a
+ * stream of events. Events carry increasing sequence numbers and are kept
+ * in an in-memory ring buffer; optionally every event is also appended to a
+ * local log file, so a consumer can resume from any sequence number it has
+ * seen even after the ring has moved on. Next to the log, an index file
+ * holds the byte offset of every INDEX_INTERVAL-th event, so opening the
+ * log and reading from an old sequence number seek instead of scanning.
+ *
+ * Subscribers are called on a dispatcher thread, never on the thread that
+ * made the change.
+ *
+ */
+public class ChangeEventStream {
+   public static final String ORDER_PLACED = "order.placed";
+   public static final String PRODUCT_UPDATED = "product.updated";
+   public static final String PRODUCT_ADDED = "product.added";
+   public static final String PRODUCT_REMOVED = "product.removed";
+   public static final String SUPPLY_REQUESTED = "supply.requested";
+   public static final String USER_UPDATED = "user.updated";
+   public static final String USER_REMOVED = "user.removed";
+   // events per index entry; entry k holds the offset of event k * INDEX_INTERVAL + 1.
+   static final int INDEX_INTERVAL = 256;
+
+   /**
+    * One change, with its fields as name/value pairs.
+    */
+   public static class ChangeEvent {
+      public final long sequence;
+      public final long timestamp;
+      public final String type;
+      public final Map<String, String> fields;
+
+      ChangeEvent(long sequence, long timestamp, String type, Map<String, String> fields) {
+         this.sequence = sequence;
+         this.timestamp = timestamp;
+         this.type = type;
+         this.fields = Collections.unmodifiableMap(fields);
+      }
+
+      public String toString() {
+         return this.sequence + " " + this.type + " " + this.fields;
+      }
+   }//end ChangeEvent
+
+   /**
+    * Receives the events of a subscription, in sequence order.
+    */
+   public interface Listener {
+      void onEvent(ChangeEvent event);
+   }
+
+   private final ChangeEvent[] ring;
+   private final File logFile;
+   private final File indexFile;
+   private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+   private OutputStream log = null;
+   private DataOutputStream index = null;
+   // length of the log file, the offset the next event is written at.
+   private long logSize = 0;
+   // sequence number the next event gets; the first event is 1.
+   private long nextSequence = 1;
+   // first sequence number published by this process, older ones are only in the log.
+   private long firstInMemory = 1;
+   private Thread dispatcher = null;
+
+   private static class Subscription {
+      final Listener listener;
+      long next;
+
+      Subscription(Listener listener, long next) {
+         this.listener = listener;
+         this.next = next;
+      }
+   }
+
+   /**
+    * Creates a new stream
+    *
+    * @param capacity the number of events kept in memory
+    * @param logFile the append-only log file, or null for memory only
+    * @throws java.io.IOException when failed to open the log file
+    */
+   public ChangeEventStream(int capacity, File logFile) throws IOException {
+      this.ring = new ChangeEvent[Math.max(16, capacity)];
+      this.logFile = logFile;
+      this.indexFile = logFile == null ? null : new File(logFile.getPath() + ".idx");
+      if (logFile != null) {
+         // continue the numbering of an existing log.
+         this.nextSequence = recover() + 1;
+         this.firstInMemory = this.nextSequence;
+         this.log = new FileOutputStream(logFile, true);
+         this.index = new DataOutputStream(new FileOutputStream(this.indexFile, true));
+      }
+   }//end ChangeEventStream
+
+   /**
+    * Creates a stream from the retail.events.* system properties.
+    *
+    * @return the stream, logging to retail.events.log when set
+    * @throws java.io.IOException when failed to open the log file
+    */
+   public static ChangeEventStream fromProperties() throws IOException {
+      String path = System.getProperty("retail.events.log");
+      return new ChangeEventStream(Integer.getInteger("retail.events.capacity", 4096),
+                                   path == null ? null : new File(path));
+   }//end fromProperties
+
+   /**
+    * Publishes an event.
+    *
+    * @param type the event type
+    * @param keyValues alternating field names and values
+    * @return the sequence number of the event
+    */
+   public synchronized long publish(String type, Object... keyValues) {
+      Map<String, String> fields = new LinkedHashMap<String, String>();
+      for (int i = 0; i + 1 < keyValues.length; i += 2)
+         fields.put(String.valueOf(keyValues[i]), keyValues[i + 1] == null ? null : String.valueOf(keyValues[i + 1]));
+      ChangeEvent event = new ChangeEvent(this.nextSequence++, System.currentTimeMillis(), type, fields);
+      this.ring[(int) (event.sequence % this.ring.length)] = event;
+      if (this.log != null) {
+         try{
+            byte[] line = encode(event).getBytes(StandardCharsets.UTF_8);
+            if (event.sequence % INDEX_INTERVAL == 1) {
+               this.index.writeLong(this.logSize);
+               this.index.flush();
+            }
+            this.log.write(line);
+            this.logSize += line.length;
+         }catch (IOException e){
+            System.err.println("Unable to write change log: " + e.getMessage());
+         }
+      }
+      notifyAll();
+      return event.sequence;
+   }//end publish
+
+   /**
+    * Returns the sequence number of the latest event, or 0 if there is none.
+    */
+   public synchronized long lastSequence() {
+      return this.nextSequence - 1;
+   }
+
+   /**
+    * Returns up to max events starting at a sequence number. Events no longer
+    * in memory are read from the log file; without a log they are skipped.
+    *
+    * @param from the first sequence number wanted
+    * @param max the maximum number of events returned
+    * @return the events, in sequence order
+    * @throws java.io.IOException when failed to read the log file
+    */
+   public List<ChangeEvent> read(long from, int max) throws IOException {
+      List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+      synchronized (this) {
+         long oldest = Math.max(this.firstInMemory, this.nextSequence - this.ring.length);
+         if (from >= oldest || this.logFile == null) {
+            for (long seq = Math.max(from, oldest); seq < this.nextSequence && events.size() < max; ++seq)
+               events.add(this.ring[(int) (seq % this.ring.length)]);
+            return events;
+         }
+      }
+      return readLog(from, max);
+   }//end read
+
+   /**
+    * Subscribes a listener, starting at a sequence number. Pass
+    * lastSequence() + 1 to get only new events.
+    *
+    * @param listener the listener to call
+    * @param from the first sequence number to deliver
+    */
+   public void subscribe(Listener listener, long from) {
+      this.subscriptions.add(new Subscription(listener, from));
+      startDispatcher();
+   }//end subscribe
+
+   /**
+    * Removes a listener.
+    */
+   public void unsubscribe(Listener listener) {
+      for (Subscription s : this.subscriptions)
+         if (s.listener == listener)
+            this.subscriptions.remove(s);
+   }
+
+   /**
+    * Stops the dispatcher and closes the log file.
+    */
+   public void close() {
+      Thread t;
+      synchronized (this) {
+         t = this.dispatcher;
+         this.dispatcher = null;
+         notifyAll();
+      }
+      if (t != null) {
+         t.interrupt();
+         try{
+            t.join(1000);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+      }
+      synchronized (this) {
+         try{
+            if (this.log != null) {
+               this.log.close();
+               this.index.close();
+            }
+         }catch (IOException e){
+            // ignored.
+         }
+         this.log = null;
+         this.index = null;
+      }
+   }//end close
+
+   private synchronized void startDispatcher() {
+      if (this.dispatcher != null) {
+         notifyAll();
+         return;
+      }
+      this.dispatcher = new Thread(new Runnable() {
+         public void run() {
+            dispatch();
+         }
+      }, "change-events");
+      this.dispatcher.setDaemon(true);
+      this.dispatcher.start();
+   }//end startDispatcher
+
+   /*
+    * Delivers events to every subscription that is behind, then waits for
+    * the next publish.
+    **/
+   private void dispatch() {
+      while (true) {
+         boolean delivered = false;
+         for (Subscription s : this.subscriptions) {
+            List<ChangeEvent> events;
+            try{
+               events = read(s.next, 256);
+            }catch (IOException e){
+               System.err.println("Unable to read change log: " + e.getMessage());
+               events = Collections.emptyList();
+            }
+            for (ChangeEvent event : events) {
+               try{
+                  s.listener.onEvent(event);
+               }catch (RuntimeException e){
+                  System.err.println("Change listener failed: " + e.getMessage());
+               }
+               s.next = event.sequence + 1;
+               delivered = true;
+            }
+         }
+         synchronized (this) {
+            if (this.dispatcher != Thread.currentThread())
+               return;
+            if (!delivered && !behind()) {
+               try{
+                  wait();
+               }catch (InterruptedException e){
+                  return;
+               }
+            }
+         }
+      }
+   }//end dispatch
+
+   private synchronized boolean behind() {
+      for (Subscription s : this.subscriptions)
+         if (s.next < this.nextSequence)
+            return true;
+      return false;
+   }
+
+   /*
+    * Reads up to max events from the log, starting at the indexed offset
+    * at or before the first sequence number wanted.
+    **/
+   private List<ChangeEvent> readLog(long from, int max) throws IOException {
+      List<ChangeEvent> events = new ArrayList<ChangeEvent>();
+      if (this.logFile == null || !this.logFile.exists())
+         return events;
+      long offset = indexedOffset(from);
+      RandomAccessFile file = new RandomAccessFile(this.logFile, "r");
+      try{
+         file.seek(offset);
+         InputStream in = new BufferedInputStream(Channels.newInputStream(file.getChannel()));
+         byte[] line;
+         while ((line = readLine(in)) != null && events.size() < max) {
+            ChangeEvent event = decode(new String(line, StandardCharsets.UTF_8));
+            if (event == null)
+               continue;
+            // a log that did not start at sequence 1 is not indexed by sequence.
+            if (offset > 0 && events.isEmpty() && event.sequence > from) {
+               offset = 0;
+               file.seek(0);
+               in = new BufferedInputStream(Channels.newInputStream(file.getChannel()));
+               continue;
+            }
+            if (event.sequence >= from)
+               events.add(event);
+         }
+      }finally{
+         file.close();
+      }
+      return events;
+   }//end readLog
+
+   // offset of the indexed event at or before a sequence number, 0 if none.
+   private long indexedOffset(long sequence) throws IOException {
+      if (!this.indexFile.exists())
+         return 0;
+      RandomAccessFile file = new RandomAccessFile(this.indexFile, "r");
+      try{
+         long entries = file.length() / 8;
+         if (entries == 0)
+            return 0;
+         long entry = Math.min(Math.max(sequence - 1, 0) / INDEX_INTERVAL, entries - 1);
+         file.seek(entry * 8);
+         return file.readLong();
+      }finally{
+         file.close();
+      }
+   }//end indexedOffset
+
+   /*
+    * Brings the log and its index to a consistent end after a restart: a
+    * torn last line is cut off, index entries past the end of the log are
+    * dropped, and the events after the last index entry are scanned to
+    * find the last sequence number and add the entries that are missing.
+    * Only the tail is read, unless the log predates its index.
+    * @return the last sequence number in the log, 0 if it is empty
+    **/
+   private long recover() throws IOException {
+      RandomAccessFile file = new RandomAccessFile(this.logFile, "rw");
+      RandomAccessFile idx = new RandomAccessFile(this.indexFile, "rw");
+      try{
+         long size = file.length();
+         while (size > 0) {
+            file.seek(size - 1);
+            if (file.read() == '\n')
+               break;
+            --size;
+         }
+         file.setLength(size);
+         this.logSize = size;
+
+         long entries = idx.length() / 8;
+         long start = 0;
+         while (entries > 0) {
+            idx.seek((entries - 1) * 8);
+            start = idx.readLong();
+            if (start < size)
+               break;
+            --entries;
+            start = 0;
+         }
+         idx.setLength(entries * 8);
+
+         long last = 0;
+         long offset = start;
+         file.seek(start);
+         InputStream in = new BufferedInputStream(Channels.newInputStream(file.getChannel()));
+         byte[] line;
+         idx.seek(entries * 8);
+         while ((line = readLine(in)) != null) {
+            ChangeEvent event = decode(new String(line, StandardCharsets.UTF_8));
+            if (event != null) {
+               last = event.sequence;
+               if (last % INDEX_INTERVAL == 1 && (last - 1) / INDEX_INTERVAL == entries) {
+                  idx.writeLong(offset);
+                  ++entries;
+               }
+            }
+            offset += line.length + 1;
+         }
+         return last;
+      }finally{
+         idx.close();
+         file.close();
+      }
+   }//end recover
+
+   // reads one newline terminated line, null at the end or at an unterminated last line.
+   private static byte[] readLine(InputStream in) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+      int b;
+      while ((b = in.read()) >= 0) {
+         if (b == '\n')
+            return line.toByteArray();
+         line.write(b);
+      }
+      return null;
+   }
+
+   /*
+    * Log line layout: sequence, timestamp, type, then name=value pairs, all
+    * separated by tabs.
+    **/
+   private static String encode(ChangeEvent event) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(event.sequence).append('\t').append(event.timestamp).append('\t').append(event.type);
+      for (Map.Entry<String, String> f : event.fields.entrySet())
+         sb.append('\t').append(escape(f.getKey())).append('=').append(f.getValue() == null ? "\\N" : escape(f.getValue()));
+      return sb.append('\n').toString();
+   }
+
+   private static ChangeEvent decode(String line) {
+      String[] parts = line.split("\t");
+      if (parts.length < 3)
+         return null;
+      try{
+         Map<String, String> fields = new LinkedHashMap<String, String>();
+         for (int i = 3; i < parts.length; ++i) {
+            int eq = parts[i].indexOf('=');
+            String value = parts[i].substring(eq + 1);
+            fields.put(unescape(parts[i].substring(0, eq)), value.equals("\\N") ? null : unescape(value));
+         }
+         return new ChangeEvent(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], fields);
+      }catch (RuntimeException e){
+         // a torn last line after a crash.
+         return null;
+      }
+   }
+
+   private static String escape(String s) {
+      return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("=", "\\e");
+   }
+
+   private static String unescape(String s) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         if (c == '\\' && i + 1 < s.length()) {
+            char n = s.charAt(++i);
+            sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'e' ? '=' : n);
+         } else {
+            sb.append(c);
+         }
+      }
+      return sb.toString();
+   }
+
+}//end ChangeEventStream
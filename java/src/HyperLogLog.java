@@ -0,0 +1,166 @@
+/*
+ * HyperLogLog distinct counter
+ * ============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * This class estimates the number of distinct values added to it in a
+ * fixed amount of memory: 2^precision one-byte registers, each keeping the
+ * longest run of leading zeros seen among the hashes routed to it. With
+ * the default precision of 12 the standard error is about 1.6%.
+ *
+ * Two counters of the same precision merge by taking the larger register,
+ * so counts of stores or days combine into the count of their union. A
+ * counter with few registers set is written as index and value pairs.
+ *
+ */
+public class HyperLogLog {
+   public static final int DEFAULT_PRECISION = 12;
+
+   private final int precision;
+   private final byte[] registers;
+
+   /**
+    * Creates an empty counter
+    *
+    * @param precision the number of index bits, between 4 and 16
+    */
+   public HyperLogLog(int precision) {
+      if (precision < 4 || precision > 16)
+         throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 16: " + precision);
+      this.precision = precision;
+      this.registers = new byte[1 << precision];
+   }//end HyperLogLog
+
+   /**
+    * Adds a value.
+    */
+   public void add(long value) {
+      long hash = mix(value);
+      int index = (int) (hash >>> (64 - this.precision));
+      // the index bits are shifted out; a sentinel bit bounds the run of zeros.
+      long rest = (hash << this.precision) | (1L << (this.precision - 1));
+      byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+      if (rank > this.registers[index])
+         this.registers[index] = rank;
+   }//end add
+
+   /**
+    * Adds the values of another counter of the same precision to this one.
+    */
+   public void merge(HyperLogLog other) {
+      if (other.precision != this.precision)
+         throw new IllegalArgumentException("Cannot merge HyperLogLog counters of precision " + this.precision + " and " + other.precision);
+      for (int i = 0; i < this.registers.length; ++i)
+         if (other.registers[i] > this.registers[i])
+            this.registers[i] = other.registers[i];
+   }//end merge
+
+   /**
+    * Returns the estimated number of distinct values added, with Ertl's
+    * improved estimator, which needs no bias tables or switch to linear
+    * counting for small counts.
+    */
+   public long estimate() {
+      int m = this.registers.length;
+      int q = 64 - this.precision;
+      int[] histogram = new int[q + 2];
+      for (byte r : this.registers)
+         ++histogram[r];
+      double z = m * tau(1.0 - (double) histogram[q + 1] / m);
+      for (int k = q; k >= 1; --k)
+         z = 0.5 * (z + histogram[k]);
+      z += m * sigma((double) histogram[0] / m);
+      return Math.round(m / (2 * Math.log(2)) * m / z);
+   }//end estimate
+
+   private static double sigma(double x) {
+      if (x == 1.0)
+         return Double.POSITIVE_INFINITY;
+      double y = 1;
+      double z = x;
+      double previous;
+      do{
+         x *= x;
+         previous = z;
+         z += x * y;
+         y += y;
+      }while (z != previous);
+      return z;
+   }
+
+   private static double tau(double x) {
+      if (x == 0.0 || x == 1.0)
+         return 0.0;
+      double y = 1.0;
+      double z = 1 - x;
+      double previous;
+      do{
+         x = Math.sqrt(x);
+         previous = z;
+         y *= 0.5;
+         z -= (1 - x) * (1 - x) * y;
+      }while (z != previous);
+      return z / 3;
+   }
+
+   /**
+    * Writes the counter, as index and value pairs when that is shorter.
+    */
+   public void write(DataOutputStream out) throws IOException {
+      int set = 0;
+      for (byte r : this.registers)
+         if (r != 0)
+            ++set;
+      out.writeByte(this.precision);
+      if (set * 3 < this.registers.length) {
+         out.writeByte(0);
+         out.writeShort(set);
+         for (int i = 0; i < this.registers.length; ++i) {
+            if (this.registers[i] != 0) {
+               out.writeShort(i);
+               out.writeByte(this.registers[i]);
+            }
+         }
+      }else{
+         out.writeByte(1);
+         out.write(this.registers);
+      }
+   }//end write
+
+   /**
+    * Reads a counter written by write.
+    */
+   public static HyperLogLog read(DataInputStream in) throws IOException {
+      HyperLogLog hll = new HyperLogLog(in.readUnsignedByte());
+      if (in.readUnsignedByte() == 0) {
+         int set = in.readUnsignedShort();
+         for (int i = 0; i < set; ++i) {
+            int index = in.readUnsignedShort();
+            hll.registers[index] = in.readByte();
+         }
+      }else{
+         in.readFully(hll.registers);
+      }
+      return hll;
+   }//end read
+
+   // 64-bit finalizer of MurmurHash3, spreads close values over all bits.
+   private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+}//end HyperLogLog
@@ -0,0 +1,492 @@
+/*
+ * Load-test driver
+ * ================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class replays a mix of the 15 menu operations against the database
+ * from many simulated users, without the interactive menus.
+ *
+ * Users, stores and products are picked from the seeded data: customer
+ * operations run as customers, manager operations as the manager of a
+ * store, admin operations as an admin. Each operation makes the role
+ * checks of its menu and calls the same Retail method the menu does.
+ *
+ * In closed-loop mode every session issues its next operation after the
+ * previous one finished and a think time. In open-loop mode operations
+ * arrive at a fixed rate whatever the response times, and latency counts
+ * from the scheduled arrival, so queueing delay is included.
+ *
+ * Throughput, latency percentiles and errors are reported per interval
+ * and per operation at the end. Errors are counted by SQLSTATE, or by
+ * exception class when there is none, with the first message of each.
+ * Orders the application refuses (store out of range, not enough stock,
+ * unknown product) are counted apart, by reason, and not as successes.
+ *
+ * Sessions share the change event stream and the slow query log of the
+ * first session. Choice 14 rewrites a customer with its own details and
+ * the load.password password.
+ *
+ */
+public class LoadDriver {
+   // default share of each menu choice, mostly customer browse and order.
+   private static final String DEFAULT_MIX = "1:10,2:25,3:20,4:15,5:3,6:2,7:2,8:2,9:3,10:2,11:2,12:1,13:1,14:1,15:1";
+
+   private final List<Retail> sessions = new ArrayList<Retail>();
+   private final int[] choices;
+   private final int[] cumulative;
+   // seeded data the operations pick from.
+   private final List<Integer> customers = new ArrayList<Integer>();
+   private final Map<Integer, String[]> customerDetails = new HashMap<Integer, String[]>();
+   private final List<Integer> admins = new ArrayList<Integer>();
+   private final List<int[]> storeManagers = new ArrayList<int[]>();
+   private final Map<Integer, List<String>> products = new HashMap<Integer, List<String>>();
+   private final String password = System.getProperty("load.password", "xyz");
+   // product every order goes to, with the customers in range of its store; null for random products.
+   private String hotProduct = null;
+   private int hotStore;
+   private final List<Integer> hotCustomers = new ArrayList<Integer>();
+
+   private final Object lock = new Object();
+   private Stats interval = new Stats();
+   private final Map<Integer, Stats> perChoice = new HashMap<Integer, Stats>();
+
+   /*
+    * Latencies, errors and refused orders of a set of operations.
+    **/
+   private static class Stats {
+      long[] micros = new long[1024];
+      int count = 0;
+      int errors = 0;
+      int refused = 0;
+      // error count and first message by SQLSTATE or exception class.
+      final Map<String, Integer> errorKinds = new TreeMap<String, Integer>();
+      final Map<String, String> samples = new HashMap<String, String>();
+      // refused orders by reason.
+      final Map<String, Integer> refusals = new TreeMap<String, Integer>();
+
+      void add(long latencyMicros, Exception error, String refusal) {
+         if (this.count == this.micros.length)
+            this.micros = Arrays.copyOf(this.micros, this.count * 2);
+         this.micros[this.count++] = latencyMicros;
+         if (error != null) {
+            ++this.errors;
+            String kind = kind(error);
+            this.errorKinds.merge(kind, 1, Integer::sum);
+            this.samples.putIfAbsent(kind, String.valueOf(error.getMessage()).replace('\n', ' '));
+         }
+         else if (refusal != null) {
+            ++this.refused;
+            this.refusals.merge(refusal, 1, Integer::sum);
+         }
+      }
+
+      // one line per kind of error and per refusal reason, indented under the stats line.
+      String formatErrors(String indent) {
+         StringBuilder out = new StringBuilder();
+         for (Map.Entry<String, Integer> e : this.errorKinds.entrySet())
+            out.append(String.format("%n%s%-16s %6d  %s", indent, e.getKey(), e.getValue(), this.samples.get(e.getKey())));
+         for (Map.Entry<String, Integer> e : this.refusals.entrySet())
+            out.append(String.format("%n%srefused          %6d  %s", indent, e.getValue(), e.getKey()));
+         return out.toString();
+      }
+
+      private static String kind(Exception e) {
+         if (e instanceof SQLException && ((SQLException) e).getSQLState() != null)
+            return "SQLSTATE " + ((SQLException) e).getSQLState();
+         return e.getClass().getSimpleName();
+      }
+
+      String format(double seconds) {
+         long[] sorted = Arrays.copyOf(this.micros, this.count);
+         Arrays.sort(sorted);
+         return String.format("%8.1f ops/s  p50 %8.2f ms  p95 %8.2f ms  p99 %8.2f ms  max %8.2f ms  ok %d  refused %d  errors %d",
+                              this.count / seconds, percentile(sorted, 0.50), percentile(sorted, 0.95),
+                              percentile(sorted, 0.99), percentile(sorted, 1.0), this.count - this.errors - this.refused,
+                              this.refused, this.errors);
+      }
+
+      private static double percentile(long[] sorted, double p) {
+         if (sorted.length == 0)
+            return 0;
+         int i = (int) Math.ceil(p * sorted.length) - 1;
+         return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1000.0;
+      }
+   }//end Stats
+
+   /**
+    * Creates a new driver
+    *
+    * @param sessions the Retail sessions, one per concurrent user
+    * @param mix the share of each menu choice, as choice:weight pairs
+    * @throws java.sql.SQLException when failed to load the seeded data
+    */
+   public LoadDriver(List<Retail> sessions, String mix) throws SQLException {
+      this.sessions.addAll(sessions);
+      String[] pairs = mix.split(",");
+      this.choices = new int[pairs.length];
+      this.cumulative = new int[pairs.length];
+      int total = 0;
+      for (int i = 0; i < pairs.length; ++i) {
+         String[] kv = pairs[i].trim().split(":");
+         this.choices[i] = Integer.parseInt(kv[0].trim());
+         total += Integer.parseInt(kv[1].trim());
+         this.cumulative[i] = total;
+         this.perChoice.put(this.choices[i], new Stats());
+      }
+
+      Retail esql = sessions.get(0);
+      for (List<String> r : esql.executeQueryAndReturnResult("SELECT userID, type, name, latitude, longitude FROM Users")) {
+         String type = r.get(1).toLowerCase();
+         if (type.equals("customer")) {
+            this.customers.add(Integer.parseInt(r.get(0)));
+            this.customerDetails.put(Integer.parseInt(r.get(0)), new String[] { r.get(2), r.get(3), r.get(4), r.get(1) });
+         }
+         else if (type.equals("admin"))
+            this.admins.add(Integer.parseInt(r.get(0)));
+      }
+      for (List<String> r : esql.executeQueryAndReturnResult("SELECT storeID, managerID FROM Store"))
+         this.storeManagers.add(new int[] { Integer.parseInt(r.get(0)), Integer.parseInt(r.get(1)) });
+      for (List<String> r : esql.executeQueryAndReturnResult("SELECT storeID, productName FROM Product")) {
+         int storeID = Integer.parseInt(r.get(0));
+         List<String> names = this.products.get(storeID);
+         if (names == null) {
+            names = new ArrayList<String>();
+            this.products.put(storeID, names);
+         }
+         names.add(r.get(1));
+      }
+      if (this.customers.isEmpty() || this.admins.isEmpty() || this.storeManagers.isEmpty())
+         throw new SQLException("The database needs customers, an admin and stores to drive load");
+   }//end LoadDriver
+
+   /**
+    * Sends every order to one product, as in a flash sale, placed by the
+    * customers in range of its store.
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    * @throws java.sql.SQLException when failed to find the customers in range
+    */
+   public void setHotProduct(int storeID, String productName) throws SQLException {
+      Retail esql = this.sessions.get(0);
+      this.hotCustomers.clear();
+      for (int customer : this.customers)
+         if (esql.executeQuery(Retail.storesInRangeQuery(String.valueOf(customer)) + String.format(" and s.storeID = '%d'", storeID)) > 0)
+            this.hotCustomers.add(customer);
+      if (this.hotCustomers.isEmpty())
+         throw new SQLException("No customer is in range of store " + storeID);
+      this.hotStore = storeID;
+      this.hotProduct = productName;
+   }//end setHotProduct
+
+   /**
+    * Runs a closed loop: every session issues operations back to back.
+    *
+    * @param seconds the duration of the run
+    * @param thinkMillis the pause after each operation
+    * @param reportSeconds the length of a reporting interval
+    */
+   public void runClosed(int seconds, final int thinkMillis, int reportSeconds) throws InterruptedException {
+      final AtomicBoolean running = new AtomicBoolean(true);
+      ExecutorService pool = Executors.newFixedThreadPool(this.sessions.size());
+      for (final Retail esql : this.sessions) {
+         pool.execute(new Runnable() {
+            public void run() {
+               while (running.get()) {
+                  runOne(esql, System.nanoTime());
+                  if (thinkMillis > 0) {
+                     try{
+                        Thread.sleep(thinkMillis);
+                     }catch (InterruptedException e){
+                        return;
+                     }
+                  }
+               }
+            }
+         });
+      }
+      report(seconds, reportSeconds);
+      running.set(false);
+      pool.shutdown();
+      pool.awaitTermination(60, TimeUnit.SECONDS);
+   }//end runClosed
+
+   /**
+    * Runs an open loop: operations arrive at a fixed rate and wait for a
+    * free session.
+    *
+    * @param seconds the duration of the run
+    * @param ratePerSecond the arrival rate
+    * @param reportSeconds the length of a reporting interval
+    */
+   public void runOpen(final int seconds, final double ratePerSecond, int reportSeconds) throws InterruptedException {
+      final BlockingQueue<Retail> idle = new ArrayBlockingQueue<Retail>(this.sessions.size(), false, this.sessions);
+      final ExecutorService pool = Executors.newFixedThreadPool(this.sessions.size());
+      Thread arrivals = new Thread(new Runnable() {
+         public void run() {
+            long periodNanos = (long) (1e9 / ratePerSecond);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            for (long due = start; due < end; due += periodNanos) {
+               long wait = due - System.nanoTime();
+               if (wait > 0) {
+                  try{
+                     TimeUnit.NANOSECONDS.sleep(wait);
+                  }catch (InterruptedException e){
+                     return;
+                  }
+               }
+               final long scheduled = due;
+               pool.execute(new Runnable() {
+                  public void run() {
+                     Retail esql;
+                     try{
+                        esql = idle.take();
+                     }catch (InterruptedException e){
+                        return;
+                     }
+                     try{
+                        runOne(esql, scheduled);
+                     }finally{
+                        idle.add(esql);
+                     }
+                  }
+               });
+            }
+         }
+      }, "arrivals");
+      arrivals.start();
+      report(seconds, reportSeconds);
+      arrivals.join();
+      pool.shutdown();
+      pool.awaitTermination(60, TimeUnit.SECONDS);
+   }//end runOpen
+
+   /*
+    * Prints one line per interval while the run lasts, then the totals per
+    * menu choice.
+    **/
+   private void report(int seconds, int reportSeconds) throws InterruptedException {
+      long start = System.nanoTime();
+      for (int elapsed = reportSeconds; elapsed <= seconds; elapsed += reportSeconds) {
+         long wake = start + TimeUnit.SECONDS.toNanos(elapsed);
+         TimeUnit.NANOSECONDS.sleep(Math.max(0, wake - System.nanoTime()));
+         Stats done;
+         synchronized (this.lock) {
+            done = this.interval;
+            this.interval = new Stats();
+         }
+         System.out.println(String.format("[%4d s] %s%s", elapsed, done.format(reportSeconds), done.formatErrors("         ")));
+      }
+      System.out.println("Per operation:");
+      synchronized (this.lock) {
+         for (int choice : this.choices) {
+            Stats stats = this.perChoice.get(choice);
+            System.out.println(String.format("  %-30s %s%s", Retail.operationName(choice), stats.format(seconds), stats.formatErrors("    ")));
+         }
+      }
+   }//end report
+
+   // picks an operation from the mix, runs it and records its latency.
+   private void runOne(Retail esql, long scheduledNanos) {
+      int pick = ThreadLocalRandom.current().nextInt(this.cumulative[this.cumulative.length - 1]);
+      int choice = this.choices[this.choices.length - 1];
+      for (int i = 0; i < this.cumulative.length; ++i) {
+         if (pick < this.cumulative[i]) {
+            choice = this.choices[i];
+            break;
+         }
+      }
+      Exception error = null;
+      String refusal = null;
+      try{
+         esql.setReadOnly(Retail.isReadOnlyChoice(choice));
+         esql.setOperation(Retail.operationName(choice));
+         refusal = runChoice(esql, choice, ThreadLocalRandom.current());
+      }catch (Exception e){
+         error = e;
+      }finally{
+         esql.setReadOnly(false);
+         esql.clearStore();
+      }
+      long micros = (System.nanoTime() - scheduledNanos) / 1000;
+      synchronized (this.lock) {
+         this.interval.add(micros, error, refusal);
+         this.perChoice.get(choice).add(micros, error, refusal);
+      }
+   }//end runOne
+
+   /*
+    * Runs one menu choice as a user of the right role would, with the role
+    * checks of the menu, through the methods the menu calls.
+    * @return why the order was refused, or null when the operation succeeded
+    **/
+   private String runChoice(Retail esql, int choice, Random rnd) throws SQLException {
+      int customer = pick(this.customers, rnd);
+      int[] storeManager = pick(this.storeManagers, rnd);
+      int storeID = storeManager[0];
+      int managerID = storeManager[1];
+      int admin = pick(this.admins, rnd);
+      List<String> names = this.products.get(storeID);
+      String product = names == null ? "" : pick(names, rnd);
+
+      if (choice == 3 || choice == 4) {
+         if (this.hotProduct != null && choice == 3)
+            customer = pick(this.hotCustomers, rnd);
+         if (Retail.isManager(esql, String.valueOf(customer)))
+            throw new IllegalStateException("User " + customer + " is not a customer");
+      }
+      else if (choice >= 5 && choice <= 11) {
+         if (!Retail.isManager(esql, String.valueOf(managerID)) || !Retail.managesStore(esql, String.valueOf(managerID), String.valueOf(storeID)))
+            throw new IllegalStateException("User " + managerID + " does not manage store " + storeID);
+      }
+      else if (choice >= 12 && choice <= 15) {
+         if (!Retail.isAdmin(esql, String.valueOf(admin)))
+            throw new IllegalStateException("User " + admin + " is not an admin");
+      }
+
+      List<String> header = new ArrayList<String>();
+      switch (choice){
+         case 1:
+            Retail.storesInRange(esql, String.valueOf(customer), header);
+            break;
+         case 2:
+            Retail.storeProducts(esql, storeID, header);
+            break;
+         case 3:
+            int placed;
+            if (this.hotProduct != null)
+               placed = Retail.submitOrder(esql, customer, this.hotStore, this.hotProduct, 1, UUID.randomUUID().toString());
+            else
+               placed = Retail.submitOrder(esql, customer, storeID, product, 1, UUID.randomUUID().toString());
+            switch (placed){
+               case Retail.ORDER_OUT_OF_RANGE: return "store out of range";
+               case Retail.ORDER_NO_STOCK: return "not enough stock";
+               case Retail.ORDER_NO_PRODUCT: return "product not found";
+            }
+            break;
+         case 4:
+            Retail.recentOrders(esql, customer);
+            break;
+         case 5:
+            Retail.submitProductUpdate(esql, managerID, storeID, product, 10 + rnd.nextInt(90), 1 + rnd.nextInt(9));
+            break;
+         case 6:
+            Retail.recentUpdates(esql, storeID, header);
+            break;
+         case 7:
+            Retail.popularProducts(esql, storeID, header);
+            break;
+         case 8:
+            Retail.popularCustomers(esql, storeID, header);
+            break;
+         case 9:
+            if (Retail.submitSupplyRequest(esql, managerID, storeID, product, 10, null) == Retail.SUPPLY_NO_WAREHOUSE)
+               throw new IllegalStateException("No warehouse found for store " + storeID);
+            break;
+         case 10:
+            Retail.storeOrders(esql, storeID, header);
+            break;
+         case 11:
+            Retail.supplyRequests(esql, storeID, header);
+            break;
+         case 12:
+            Retail.allUsers(esql, header);
+            break;
+         case 13:
+            Retail.allProducts(esql, header);
+            break;
+         case 14:
+            // rewrites a customer with its own details.
+            String[] details = this.customerDetails.get(customer);
+            Retail.submitUserUpdate(esql, customer, details[0], this.password, Double.parseDouble(details[1]),
+                                    Double.parseDouble(details[2]), details[3]);
+            break;
+         case 15:
+            // adds and removes a throwaway product, as an admin would.
+            String temp = "load" + Long.toHexString(rnd.nextLong() & 0xffffffffL);
+            Retail.submitProductAddition(esql, storeID, temp, 1, 1);
+            Retail.submitProductRemoval(esql, temp);
+            break;
+         default:
+            throw new SQLException("Unknown menu choice " + choice);
+      }
+      return null;
+   }//end runChoice
+
+   private static <T> T pick(List<T> list, Random rnd) {
+      return list.get(rnd.nextInt(list.size()));
+   }
+
+   /**
+    * Runs a load test from the command line. Settings are read from the
+    * load.* system properties: load.mode (closed or open), load.sessions,
+    * load.seconds, load.rate (open loop, operations per second),
+    * load.thinkMillis (closed loop), load.reportSeconds, load.mix,
+    * load.hotProduct (storeID:productName, to send every order there) and
+    * load.password (the password choice 14 sets).
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dload.mode=closed|open] [-Dload.sessions=N] [-Dload.seconds=N] " +
+            "[-Dload.rate=N] [-Dload.thinkMillis=N] [-Dload.reportSeconds=N] [-Dload.mix=choice:weight,...] " +
+            "[-Dload.hotProduct=storeID:productName] [-Dload.password=P] " +
+            LoadDriver.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      List<Retail> sessions = new ArrayList<Retail>();
+      try{
+         int count = Integer.getInteger("load.sessions", 16);
+         for (int i = 0; i < count; ++i)
+            sessions.add(new Retail (args[0], args[1], args[2], "", sessions.isEmpty() ? null : sessions.get(0)));
+
+         LoadDriver driver = new LoadDriver(sessions, System.getProperty("load.mix", DEFAULT_MIX));
+         String hot = System.getProperty("load.hotProduct");
+         if (hot != null) {
+            int colon = hot.indexOf(':');
+            driver.setHotProduct(Integer.parseInt(hot.substring(0, colon).trim()), hot.substring(colon + 1).trim());
+         }
+         int seconds = Integer.getInteger("load.seconds", 60);
+         int reportSeconds = Integer.getInteger("load.reportSeconds", 5);
+         if (System.getProperty("load.mode", "closed").equals("open"))
+            driver.runOpen(seconds, Double.parseDouble(System.getProperty("load.rate", "100")), reportSeconds);
+         else
+            driver.runClosed(seconds, Integer.getInteger("load.thinkMillis", 0), reportSeconds);
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         // the first session closes the shared stream and log, so it goes last.
+         for (int i = sessions.size() - 1; i >= 0; --i)
+            sessions.get(i).cleanup ();
+      }
+   }//end main
+
+}//end LoadDriver
@@ -0,0 +1,177 @@
+/*
+ * Customer order history cache
+ * ============================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the most recent orders of active customers in memory,
+ * newest first. A customer's orders are loaded from the database on first
+ * access and new orders are appended as they are placed, so later views do
+ * not query Orders. Customers not seen for a while are evicted, least
+ * recently used first.
+ *
+ * The cache is per process: orders placed or removed by another process
+ * are not seen here. A customer is therefore loaded again once their entry
+ * is older than a short time to live, which bounds how stale a view can be.
+ *
+ */
+public class OrderHistoryCache {
+   // number of orders kept per customer.
+   public static final int RECENT = 5;
+
+   private final Map<Integer, Entry> customers;
+   private final long ttlNanos;
+   private List<String> header = null;
+   private long hits = 0;
+   private long misses = 0;
+
+   // the recent orders of a customer, newest first.
+   private static class Entry {
+      final Deque<List<String>> orders = new ArrayDeque<List<String>>(RECENT);
+      final long expires;
+
+      Entry(long expires) {
+         this.expires = expires;
+      }
+   }
+
+   /**
+    * Creates a new cache
+    *
+    * @param capacity the number of customers kept in memory
+    * @param ttlSeconds how long a customer's orders are used before they are loaded again
+    */
+   public OrderHistoryCache(final int capacity, int ttlSeconds) {
+      this.customers = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > capacity;
+         }
+      };
+      this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+   }//end OrderHistoryCache
+
+   /**
+    * Creates a cache from the retail.orderHistory.customers and
+    * retail.orderHistory.ttlSeconds system properties.
+    */
+   public static OrderHistoryCache fromProperties() {
+      return new OrderHistoryCache(Integer.getInteger("retail.orderHistory.customers", 1000),
+                                   Integer.getInteger("retail.orderHistory.ttlSeconds", 30));
+   }//end fromProperties
+
+   // the live entry of a customer; an expired one is dropped.
+   private Entry live(int customerID) {
+      Entry e = this.customers.get(customerID);
+      if (e != null && System.nanoTime() - e.expires >= 0) {
+         this.customers.remove(customerID);
+         return null;
+      }
+      return e;
+   }
+
+   /**
+    * Returns the cached recent orders of a customer, newest first.
+    *
+    * @param customerID the customer
+    * @return a copy of the orders, or null if the customer is not cached
+    *         or their entry expired
+    */
+   public synchronized List<List<String>> get(int customerID) {
+      Entry e = live(customerID);
+      if (e == null) {
+         ++this.misses;
+         return null;
+      }
+      ++this.hits;
+      return new ArrayList<List<String>>(e.orders);
+   }//end get
+
+   /**
+    * Caches the recent orders of a customer as loaded from the database.
+    *
+    * @param customerID the customer
+    * @param header the column names of the rows
+    * @param orders the orders, newest first
+    */
+   public synchronized void put(int customerID, List<String> header, List<List<String>> orders) {
+      if (!header.isEmpty())
+         this.header = new ArrayList<String>(header);
+      Entry e = new Entry(System.nanoTime() + this.ttlNanos);
+      for (List<String> order : orders) {
+         if (e.orders.size() == RECENT)
+            break;
+         e.orders.addLast(order);
+      }
+      this.customers.put(customerID, e);
+   }//end put
+
+   /**
+    * Adds a newly placed order to a cached customer. Customers that are not
+    * cached are left alone, their first view loads the order.
+    *
+    * @param customerID the customer
+    * @param order the order row, in the column order of the header
+    */
+   public synchronized void append(int customerID, List<String> order) {
+      Entry e = live(customerID);
+      if (e == null)
+         return;
+      if (e.orders.size() == RECENT)
+         e.orders.removeLast();
+      e.orders.addFirst(order);
+   }//end append
+
+   /**
+    * Drops a customer, after their orders changed other than by append.
+    */
+   public synchronized void invalidate(int customerID) {
+      this.customers.remove(customerID);
+   }
+
+   /**
+    * Drops every customer.
+    */
+   public synchronized void clear() {
+      this.customers.clear();
+   }
+
+   /**
+    * Returns the column names of the cached rows, or null before the first load.
+    */
+   public synchronized List<String> header() {
+      return this.header;
+   }
+
+   /**
+    * Returns the number of customers cached.
+    */
+   public synchronized int size() {
+      return this.customers.size();
+   }
+
+   /**
+    * Returns the share of lookups answered from memory.
+    */
+   public synchronized double hitRate() {
+      long total = this.hits + this.misses;
+      return total == 0 ? 0 : (double) this.hits / total;
+   }
+
+   public synchronized String toString() {
+      return String.format("order history cache: %d customer(s), %d hit(s), %d miss(es), hit rate %.1f%%",
+                           this.customers.size(), this.hits, this.misses, 100 * hitRate());
+   }
+
+}//end OrderHistoryCache
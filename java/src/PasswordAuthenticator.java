@@ -0,0 +1,215 @@
+/*
+ * Password authentication
+ * =======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class checks user passwords against salted PBKDF2 hashes kept in
+ * UserCredentials, looked up by userID. A user without a hash yet still
+ * has the plain text password in Users; the first successful login stores
+ * the hash and clears the plain text.
+ *
+ * PBKDF2 is slow on purpose, so a verified login is remembered for a short
+ * while in a bounded cache. A repeated login of the same user with the same
+ * password within that time is answered from memory. The cache holds a
+ * keyed digest of the password, never the password itself, and the key
+ * lives only in this process.
+ *
+ */
+public class PasswordAuthenticator {
+   private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+   private static final String PREFIX = "pbkdf2-sha256";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+
+   private final SecureRandom random = new SecureRandom();
+   private final int iterations;
+   private final long ttlNanos;
+   private final Map<Integer, Session> sessions;
+   private final Mac sessionMac;
+
+   // a verified login.
+   private static class Session {
+      final String name;
+      final byte[] digest;
+      final long expires;
+
+      Session(String name, byte[] digest, long expires) {
+         this.name = name;
+         this.digest = digest;
+         this.expires = expires;
+      }
+   }
+
+   /**
+    * Creates a new authenticator
+    *
+    * @param iterations the PBKDF2 iterations of newly stored hashes
+    * @param sessionSeconds how long a verified login is remembered
+    * @param capacity the number of verified logins remembered
+    */
+   public PasswordAuthenticator(int iterations, int sessionSeconds, final int capacity) {
+      this.iterations = iterations;
+      this.ttlNanos = TimeUnit.SECONDS.toNanos(sessionSeconds);
+      this.sessions = new LinkedHashMap<Integer, Session>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Session> eldest) {
+            return size() > capacity;
+         }
+      };
+      try{
+         byte[] key = new byte[32];
+         this.random.nextBytes(key);
+         this.sessionMac = Mac.getInstance("HmacSHA256");
+         this.sessionMac.init(new SecretKeySpec(key, "HmacSHA256"));
+      }catch (GeneralSecurityException e){
+         throw new IllegalStateException(e);
+      }
+   }//end PasswordAuthenticator
+
+   /**
+    * Creates an authenticator from the retail.auth.* system properties.
+    */
+   public static PasswordAuthenticator fromProperties() {
+      return new PasswordAuthenticator(Integer.getInteger("retail.auth.iterations", 600000),
+                                       Integer.getInteger("retail.auth.sessionSeconds", 300),
+                                       Integer.getInteger("retail.auth.sessions", 10000));
+   }//end fromProperties
+
+   /**
+    * Checks the credentials of a user.
+    *
+    * @param esql the Retail instance to query
+    * @param name the user name
+    * @param userID the user id
+    * @param password the password
+    * @return true if the credentials match the user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean authenticate(Retail esql, String name, int userID, String password) throws SQLException {
+      byte[] digest = sessionDigest(password);
+      long now = System.nanoTime();
+      synchronized (this.sessions) {
+         Session s = this.sessions.get(userID);
+         if (s != null && now - s.expires < 0 && s.name.equals(name) && MessageDigest.isEqual(s.digest, digest))
+            return true;
+      }
+
+      // a mismatch is checked against the database, the password may have changed elsewhere.
+      List<List<String>> res = esql.executeQueryAndReturnResult(String.format(
+         "SELECT U.name, U.password, C.passwordHash, pg_typeof(U.password) = 'character'::regtype " +
+         "FROM Users U LEFT JOIN UserCredentials C ON C.userID = U.userID WHERE U.userID = '%d'", userID));
+      if (res.isEmpty())
+         return false;
+      String storedName = res.get(0).get(0);
+      String plain = res.get(0).get(1);
+      String stored = res.get(0).get(2);
+      if (!storedName.equals(name))
+         return false;
+      if (stored != null) {
+         if (!verify(password, stored))
+            return false;
+      }else{
+         // not migrated yet, checked against the plain text once; a char(11) column pads it with spaces.
+         if ("t".equals(res.get(0).get(3)))
+            plain = plain.stripTrailing();
+         if (!MessageDigest.isEqual(plain.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8)))
+            return false;
+         setPassword(esql, userID, password);
+      }
+
+      synchronized (this.sessions) {
+         this.sessions.put(userID, new Session(storedName, digest, now + this.ttlNanos));
+      }
+      return true;
+   }//end authenticate
+
+   /**
+    * Stores the hash of a new password for a user and clears the plain
+    * text one. A remembered login of the user is forgotten.
+    *
+    * @param esql the Retail instance to update
+    * @param userID the user
+    * @param password the new password
+    * @throws java.sql.SQLException when failed to store the hash
+    */
+   public void setPassword(Retail esql, int userID, String password) throws SQLException {
+      esql.executeUpdate(String.format(
+         "INSERT INTO UserCredentials (userID, passwordHash, updatedOn) VALUES ('%d', '%s', NOW()) " +
+         "ON CONFLICT (userID) DO UPDATE SET passwordHash = EXCLUDED.passwordHash, updatedOn = EXCLUDED.updatedOn",
+         userID, hash(password)));
+      esql.executeUpdate(String.format("UPDATE Users SET password = '' WHERE userID = '%d'", userID));
+      invalidate(userID);
+   }//end setPassword
+
+   /**
+    * Forgets the remembered login of a user, after their name or password
+    * changed or they were removed.
+    */
+   public void invalidate(int userID) {
+      synchronized (this.sessions) {
+         this.sessions.remove(userID);
+      }
+   }
+
+   /**
+    * Returns the stored form of a password: algorithm, iterations, salt
+    * and hash, separated by '$'.
+    */
+   public String hash(String password) {
+      byte[] salt = new byte[SALT_BYTES];
+      this.random.nextBytes(salt);
+      Base64.Encoder b64 = Base64.getEncoder();
+      return PREFIX + "$" + this.iterations + "$" + b64.encodeToString(salt) + "$"
+             + b64.encodeToString(pbkdf2(password, salt, this.iterations));
+   }//end hash
+
+   /**
+    * Checks a password against its stored form.
+    */
+   public static boolean verify(String password, String stored) {
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4 || !parts[0].equals(PREFIX))
+         return false;
+      Base64.Decoder b64 = Base64.getDecoder();
+      byte[] expected = b64.decode(parts[3]);
+      return MessageDigest.isEqual(expected, pbkdf2(password, b64.decode(parts[2]), Integer.parseInt(parts[1])));
+   }//end verify
+
+   private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+      try{
+         return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      }catch (GeneralSecurityException e){
+         throw new IllegalStateException(e);
+      }finally{
+         spec.clearPassword();
+      }
+   }//end pbkdf2
+
+   // keyed digest of a password, for comparing against a remembered login.
+   private byte[] sessionDigest(String password) {
+      synchronized (this.sessionMac) {
+         return this.sessionMac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+      }
+   }
+
+}//end PasswordAuthenticator
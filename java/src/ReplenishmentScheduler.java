@@ -0,0 +1,287 @@
+/*
+ * Automatic low-stock replenishment
+ * =================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class restocks products that run low. The order path marks the
+ * products whose stock it changed, and a background thread periodically
+ * checks only those products. Products below their store's threshold are
+ * restocked from the nearest warehouse: one supply request per product and
+ * the matching stock increase, written in one transaction per warehouse.
+ * The units added are computed from the stock when the product row is
+ * written, so two processes restocking the same product do not both top
+ * it up.
+ *
+ */
+public class ReplenishmentScheduler {
+   private final Retail esql;
+   private final int defaultThreshold;
+   private final int restockTo;
+   private final Map<Integer, Integer> thresholds = new ConcurrentHashMap<Integer, Integer>();
+   // products changed since the last run, keyed by storeID and product name.
+   private final Map<String, Object[]> changed = new ConcurrentHashMap<String, Object[]>();
+   private ScheduledExecutorService timer = null;
+   private Connection conn = null;
+
+   /**
+    * Creates a new scheduler
+    *
+    * @param esql the Retail instance used to open the side connection
+    * @param defaultThreshold stock level below which a product is restocked
+    * @param restockTo the stock level a restocked product is brought to
+    * @throws IllegalStateException on a sharded deployment, where the
+    *         products are on the shards and not on the main database
+    */
+   public ReplenishmentScheduler(Retail esql, int defaultThreshold, int restockTo) {
+      if (esql.isSharded())
+         throw new IllegalStateException("Replenishment is not supported on a sharded deployment");
+      this.esql = esql;
+      this.defaultThreshold = defaultThreshold;
+      this.restockTo = restockTo;
+   }//end ReplenishmentScheduler
+
+   /**
+    * Creates a scheduler from the retail.replenish.* system properties.
+    * retail.replenish.thresholds takes per-store overrides as
+    * storeID:threshold pairs separated by commas.
+    *
+    * @param esql the Retail instance used to open the side connection
+    * @return the scheduler, or null when retail.replenish.interval is not set
+    */
+   public static ReplenishmentScheduler fromProperties(Retail esql) {
+      int interval = Integer.getInteger("retail.replenish.interval", 0);
+      if (interval <= 0)
+         return null;
+      ReplenishmentScheduler scheduler = new ReplenishmentScheduler(esql,
+         Integer.getInteger("retail.replenish.threshold", 10),
+         Integer.getInteger("retail.replenish.target", 50));
+      String overrides = System.getProperty("retail.replenish.thresholds", "");
+      for (String pair : overrides.split(",")) {
+         String[] kv = pair.trim().split(":");
+         if (kv.length == 2)
+            scheduler.setThreshold(Integer.parseInt(kv[0].trim()), Integer.parseInt(kv[1].trim()));
+      }
+      scheduler.start(interval);
+      return scheduler;
+   }//end fromProperties
+
+   /**
+    * Sets the restock threshold of one store.
+    */
+   public void setThreshold(int storeID, int threshold) {
+      this.thresholds.put(storeID, threshold);
+   }
+
+   /**
+    * Records that the stock of a product changed, so the next run checks it.
+    */
+   public void markChanged(int storeID, String productName) {
+      this.changed.put(storeID + "/" + productName, new Object[] { storeID, productName });
+   }
+
+   /**
+    * Starts the background thread.
+    *
+    * @param intervalSeconds the delay between two runs
+    */
+   public synchronized void start(int intervalSeconds) {
+      if (this.timer != null)
+         return;
+      this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "replenishment");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this.timer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try{
+               runOnce();
+            }catch (SQLException e){
+               System.err.println("Replenishment failed: " + e.getMessage());
+            }
+         }
+      }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Stops the background thread after a last run and closes the side
+    * connection.
+    */
+   public void stop() {
+      ScheduledExecutorService running;
+      synchronized (this) {
+         running = this.timer;
+         this.timer = null;
+      }
+      if (running == null)
+         return;
+      running.shutdown();
+      try{
+         running.awaitTermination(10, TimeUnit.SECONDS);
+         runOnce();
+      }catch (Exception e){
+         // ignored, pending products are lost with the process.
+      }
+      synchronized (this) {
+         try{
+            if (this.conn != null)
+               this.conn.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+         this.conn = null;
+      }
+   }//end stop
+
+   /**
+    * Checks the changed products once and restocks the ones below their
+    * threshold.
+    *
+    * @return the number of supply requests written
+    * @throws java.sql.SQLException when failed to read or write the stock
+    */
+   public synchronized int runOnce() throws SQLException {
+      if (this.changed.isEmpty())
+         return 0;
+      List<Object[]> pending = new ArrayList<Object[]>();
+      for (String key : new ArrayList<String>(this.changed.keySet())) {
+         Object[] product = this.changed.remove(key);
+         if (product != null)
+            pending.add(product);
+      }
+      if (this.conn == null)
+         this.conn = this.esql.openConnection();
+
+      try{
+         // current stock and store manager of every changed product, in one query.
+         StringBuilder keys = new StringBuilder();
+         for (Object[] p : pending) {
+            if (keys.length() > 0)
+               keys.append(", ");
+            keys.append(String.format("(%d, '%s')", (Integer) p[0], ((String) p[1]).replace("'", "''")));
+         }
+         Statement stmt = this.conn.createStatement();
+         ResultSet rs = stmt.executeQuery(
+            "SELECT P.storeID, P.productName, P.numberOfUnits, S.managerID FROM ProductStock P, Store S " +
+            "WHERE S.storeID = P.storeID AND (P.storeID, P.productName) IN (" + keys + ")");
+         List<Object[]> low = new ArrayList<Object[]>();
+         List<Integer> stores = new ArrayList<Integer>();
+         while (rs.next()) {
+            int storeID = rs.getInt(1);
+            int units = rs.getInt(3);
+            Integer threshold = this.thresholds.get(storeID);
+            if (units < (threshold != null ? threshold : this.defaultThreshold) && units < this.restockTo) {
+               low.add(new Object[] { storeID, rs.getString(2), rs.getInt(4) });
+               stores.add(storeID);
+            }
+         }
+         stmt.close();
+         if (low.isEmpty())
+            return 0;
+
+         // coalesce the requests per warehouse.
+         Map<Integer, Integer> routes = this.esql.getWarehouseRouter().route(stores);
+         Map<Integer, List<Object[]>> byWarehouse = new HashMap<Integer, List<Object[]>>();
+         for (Object[] l : low) {
+            Integer warehouseID = routes.get((Integer) l[0]);
+            if (warehouseID == null)
+               continue;
+            List<Object[]> batch = byWarehouse.get(warehouseID);
+            if (batch == null) {
+               batch = new ArrayList<Object[]>();
+               byWarehouse.put(warehouseID, batch);
+            }
+            batch.add(l);
+         }
+
+         int written = 0;
+         for (Map.Entry<Integer, List<Object[]>> e : byWarehouse.entrySet())
+            written += writeBatch(e.getKey(), e.getValue());
+         return written;
+      }catch (SQLException e){
+         // check the products again on the next run.
+         for (Object[] p : pending)
+            markChanged((Integer) p[0], (String) p[1]);
+         throw e;
+      }
+   }//end runOnce
+
+   /*
+    * Restocks the products of one warehouse and writes their supply
+    * requests in one transaction. Each product takes one statement that
+    * computes the missing units and adds them only if the product row is
+    * unchanged since, and records the request only when units were added.
+    * A product a concurrent order or restock changed meanwhile is checked
+    * again on the next run.
+    * @return the number of supply requests written
+    **/
+   private int writeBatch(int warehouseID, List<Object[]> batch) throws SQLException {
+      List<Object[]> written = new ArrayList<Object[]>();
+      List<Object[]> busy = new ArrayList<Object[]>();
+      this.conn.setAutoCommit(false);
+      try{
+         PreparedStatement restock = this.conn.prepareStatement(
+            "WITH cur AS (SELECT P.productID, P.numberOfUnits, " +
+            "                    ? - P.numberOfUnits - COALESCE((SELECT sum(S.units) FROM ProductStockSlots S WHERE S.productID = P.productID), 0) AS missing " +
+            "             FROM Product P WHERE P.storeID = ? AND P.productName = ?), " +
+            "added AS (UPDATE Product P SET numberOfUnits = P.numberOfUnits + cur.missing FROM cur " +
+            "          WHERE P.productID = cur.productID AND P.numberOfUnits = cur.numberOfUnits AND cur.missing > 0 " +
+            "          RETURNING P.productID, cur.missing), " +
+            "request AS (INSERT INTO ProductSupplyRequests (managerID, warehouseID, productID, unitsRequested) " +
+            "            SELECT ?, ?, productID, missing FROM added) " +
+            "SELECT cur.missing, added.missing FROM cur LEFT JOIN added ON added.productID = cur.productID");
+         for (Object[] l : batch) {
+            restock.setInt(1, this.restockTo);
+            restock.setInt(2, (Integer) l[0]);
+            restock.setString(3, (String) l[1]);
+            restock.setInt(4, (Integer) l[2]);
+            restock.setInt(5, warehouseID);
+            ResultSet rs = restock.executeQuery();
+            if (rs.next() && rs.getInt(1) > 0) {
+               int added = rs.getInt(2);
+               if (rs.wasNull())
+                  busy.add(l);
+               else
+                  written.add(new Object[] { l[0], l[1], l[2], added });
+            }
+            rs.close();
+         }
+         restock.close();
+         this.conn.commit();
+      }catch (SQLException e){
+         this.conn.rollback();
+         throw e;
+      }finally{
+         this.conn.setAutoCommit(true);
+      }
+      for (Object[] l : busy)
+         markChanged((Integer) l[0], (String) l[1]);
+      for (Object[] w : written)
+         this.esql.getEventStream().publish(ChangeEventStream.SUPPLY_REQUESTED, "managerID", w[2], "warehouseID", warehouseID,
+                                            "storeID", w[0], "productName", w[1], "unitsRequested", w[3]);
+      return written.size();
+   }//end writeBatch
+
+}//end ReplenishmentScheduler
@@ -0,0 +1,210 @@
+/*
+ * Read-replica routing
+ * ====================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class spreads read-only queries over streaming replicas of the
+ * primary database. Replicas are used round robin and checked in the
+ * background; a replica that fails a query or a check is skipped until it
+ * answers again.
+ *
+ * Reads stay consistent with this session's own writes: after each write
+ * the primary's WAL position is recorded, and a replica is only used once
+ * it has replayed up to that position. Until then reads go to the primary.
+ *
+ */
+public class ReplicaRouter {
+   private final Connection primary;
+   private final String user;
+   private final String passwd;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final int checkMillis;
+   private int next = 0;
+   // WAL position of the last write made through the primary connection.
+   private volatile long lastWriteLsn = 0;
+   private Thread checker = null;
+
+   private static class Replica {
+      final String url;
+      volatile Connection conn = null;
+      volatile boolean healthy = false;
+      // last WAL position the replica reported as replayed.
+      volatile long replayLsn = 0;
+
+      Replica(String url) {
+         this.url = url;
+      }
+   }
+
+   /**
+    * Creates a new router
+    *
+    * @param primary the connection to the primary database
+    * @param replicaUrls the JDBC URLs of the replicas
+    * @param user the user name used to login to the replicas
+    * @param passwd the user login password
+    * @param checkMillis the delay between two health checks
+    */
+   public ReplicaRouter(Connection primary, List<String> replicaUrls, String user, String passwd, int checkMillis) {
+      this.primary = primary;
+      this.user = user;
+      this.passwd = passwd;
+      this.checkMillis = checkMillis;
+      for (String url : replicaUrls)
+         this.replicas.add(new Replica(url));
+      checkAll();
+      this.checker = new Thread(new Runnable() {
+         public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+               try{
+                  Thread.sleep(ReplicaRouter.this.checkMillis);
+               }catch (InterruptedException e){
+                  return;
+               }
+               checkAll();
+            }
+         }
+      }, "replica-health");
+      this.checker.setDaemon(true);
+      this.checker.start();
+   }//end ReplicaRouter
+
+   /**
+    * Creates a router from the retail.replicas system property, a comma
+    * separated list of host:port/dbname targets.
+    *
+    * @return the router, or null when no replica is configured
+    */
+   public static ReplicaRouter fromProperties(Connection primary, String user, String passwd) {
+      String targets = System.getProperty("retail.replicas", "").trim();
+      if (targets.isEmpty())
+         return null;
+      List<String> urls = new ArrayList<String>();
+      for (String target : targets.split(","))
+         if (!target.trim().isEmpty())
+            urls.add("jdbc:postgresql://" + target.trim() + Retail.JDBC_OPTIONS);
+      return new ReplicaRouter(primary, urls, user, passwd, Integer.getInteger("retail.replicas.checkMillis", 2000));
+   }//end fromProperties
+
+   /**
+    * Picks the connection for a read-only query: the next healthy replica
+    * that has caught up with this session's writes, or the primary.
+    *
+    * @return the connection to run the query on
+    */
+   public synchronized Connection forRead() {
+      for (int i = 0; i < this.replicas.size(); ++i) {
+         Replica r = this.replicas.get(this.next);
+         this.next = (this.next + 1) % this.replicas.size();
+         if (r.healthy && r.conn != null && r.replayLsn >= this.lastWriteLsn)
+            return r.conn;
+      }
+      return this.primary;
+   }//end forRead
+
+   /**
+    * Takes a replica out of rotation after a failed query, until the next
+    * successful health check.
+    */
+   public void markDown(Connection conn) {
+      for (Replica r : this.replicas)
+         if (r.conn == conn)
+            r.healthy = false;
+   }
+
+   /**
+    * Tells whether a query failed because its replica is unavailable, as
+    * opposed to an error in the query itself: a connection exception
+    * (SQLSTATE class 08), a server shutdown (57P01 to 57P03), or a
+    * connection that no longer answers.
+    *
+    * @param conn the replica connection the query ran on
+    * @param e the failure
+    * @return true if the replica should be taken out of rotation
+    */
+   public static boolean isUnavailable(Connection conn, SQLException e) {
+      String state = e.getSQLState();
+      if (state != null && (state.startsWith("08") || state.equals("57P01") || state.equals("57P02") || state.equals("57P03")))
+         return true;
+      try{
+         return !conn.isValid(2);
+      }catch (SQLException invalid){
+         return true;
+      }
+   }//end isUnavailable
+
+   /**
+    * Records the primary's WAL position after a write, so following reads
+    * wait for a replica that has replayed it.
+    *
+    * @throws java.sql.SQLException when failed to read the WAL position
+    */
+   public void noteWrite() throws SQLException {
+      Statement stmt = this.primary.createStatement();
+      ResultSet rs = stmt.executeQuery("SELECT pg_current_wal_lsn()");
+      if (rs.next())
+         this.lastWriteLsn = parseLsn(rs.getString(1));
+      stmt.close();
+   }//end noteWrite
+
+   /**
+    * Stops the health checks and closes the replica connections.
+    */
+   public void close() {
+      if (this.checker != null)
+         this.checker.interrupt();
+      for (Replica r : this.replicas) {
+         try{
+            if (r.conn != null)
+               r.conn.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+   }//end close
+
+   private void checkAll() {
+      for (Replica r : this.replicas) {
+         try{
+            if (r.conn == null || r.conn.isClosed())
+               r.conn = DriverManager.getConnection(r.url, this.user, this.passwd);
+            Statement stmt = r.conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT pg_last_wal_replay_lsn()");
+            // a server that is not in recovery reports null, it is treated as
+            // fully caught up.
+            r.replayLsn = rs.next() && rs.getString(1) != null ? parseLsn(rs.getString(1)) : Long.MAX_VALUE;
+            stmt.close();
+            r.healthy = true;
+         }catch (SQLException e){
+            r.healthy = false;
+            try{
+               if (r.conn != null)
+                  r.conn.close();
+            }catch (SQLException ignored){
+               // ignored.
+            }
+            r.conn = null;
+         }
+      }
+   }//end checkAll
+
+   // parses a WAL position of the form XXXXXXXX/XXXXXXXX.
+   private static long parseLsn(String lsn) {
+      int slash = lsn.indexOf('/');
+      return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+   }
+
+}//end ReplicaRouter
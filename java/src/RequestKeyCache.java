@@ -0,0 +1,79 @@
+/*
+ * Idempotent order submission
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class remembers the client request keys of submitted orders. The
+ * OrderRequestKeys table is the record of every key; the most recently
+ * used keys are also kept in a bounded in-memory cache, so a retry shortly
+ * after the original submission is answered without a query.
+ *
+ */
+public class RequestKeyCache {
+   private final Map<String, Integer> recent;
+
+   /**
+    * Creates a new cache
+    *
+    * @param capacity the number of keys kept in memory
+    */
+   public RequestKeyCache(final int capacity) {
+      this.recent = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > capacity;
+         }
+      };
+   }//end RequestKeyCache
+
+   /**
+    * Returns the order placed under a request key, if any.
+    *
+    * @param esql the Retail instance to query on a cache miss
+    * @param customerID the customer who submitted the order
+    * @param requestKey the client request key
+    * @return the order number, or null if the key was not used yet
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Integer find(Retail esql, int customerID, String requestKey) throws SQLException {
+      String key = customerID + "/" + requestKey;
+      synchronized (this.recent) {
+         Integer orderNumber = this.recent.get(key);
+         if (orderNumber != null)
+            return orderNumber;
+      }
+      List<List<String>> res = esql.executeQueryAndReturnResult(String.format(
+         "SELECT orderNumber FROM OrderRequestKeys WHERE customerID = '%d' AND requestKey = '%s'", customerID, escape(requestKey)));
+      if (res.isEmpty())
+         return null;
+      Integer orderNumber = Integer.valueOf(res.get(0).get(0));
+      remember(customerID, requestKey, orderNumber);
+      return orderNumber;
+   }//end find
+
+   /**
+    * Records the order placed under a request key, once it is committed.
+    */
+   public void remember(int customerID, String requestKey, int orderNumber) {
+      synchronized (this.recent) {
+         this.recent.put(customerID + "/" + requestKey, orderNumber);
+      }
+   }
+
+   /**
+    * Quotes a request key for use in a SQL string literal.
+    */
+   public static String escape(String requestKey) {
+      return requestKey.replace("'", "''");
+   }
+
+}//end RequestKeyCache
@@ -17,6 +17,7 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Date;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
@@ -35,11 +36,66 @@ public class Retail {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // connection settings, kept so helpers can open side connections.
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
+   // in-memory warehouse index, loaded on first use.
+   private WarehouseRouter _router = null;
+   // background restocking of low products, null when disabled.
+   private ReplenishmentScheduler _replenisher = null;
+   // hourly and daily sales rollups, flushed from the queued orders, null when disabled.
+   private SalesRollups _rollups = null;
+   // changes made by the write paths, for caches and downstream consumers.
+   private ChangeEventStream _events = null;
+   // replicas serving read-only operations, null when none is configured.
+   private ReplicaRouter _replicas = null;
+   // set while a read-only menu operation runs.
+   private boolean _readOnly = false;
+   // slow statements are logged here, null when disabled.
+   private SlowQueryLog _slowLog = null;
+   // the instance the stream and the log are shared with, closed by it.
+   private Retail _parent = null;
+   private String _operation = "main";
+   // shards holding the store-scoped tables, null when not sharded.
+   private ShardRouter _shards = null;
+   // shard of the store the current operation works on.
+   private Connection _storeConnection = null;
+   // recently used order request keys.
+   private final RequestKeyCache _requestKeys = new RequestKeyCache(Integer.getInteger("retail.requestKeys.cacheSize", 10000));
+   // recent orders of active customers.
+   private final OrderHistoryCache _orderHistory = OrderHistoryCache.fromProperties();
+   // password checks, with recently verified logins.
+   private final PasswordAuthenticator _auth = PasswordAuthenticator.fromProperties();
+   // stock of the products orders are placed for, striped when hot.
+   private final StockLedger _ledger = StockLedger.fromProperties();
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // distance metric used for store range checks, 'euclidean' on the raw
+   // coordinates or 'miles' for the great-circle distance.
+   static final String DISTANCE_METRIC = System.getProperty("retail.distance", "euclidean");
+   static final int STORE_RANGE = 30;
+   static final double EARTH_RADIUS_MILES = 3958.8;
+
+   // driver settings appended to every connection URL: batched INSERTs are
+   // sent as multi-row statements and sessions show up by name in
+   // pg_stat_activity. Extra settings can be passed in retail.jdbcOptions,
+   // as name=value pairs separated by '&'.
+   static final String JDBC_OPTIONS = "?reWriteBatchedInserts=true&ApplicationName=retail"
+                                      + System.getProperty("retail.jdbcOptions", "").replaceFirst("^(?=[^&])", "&");
+
+   // results of submitOrder that are not an order number.
+   public static final int ORDER_OUT_OF_RANGE = -1;
+   public static final int ORDER_NO_STOCK = -2;
+   public static final int ORDER_NO_PRODUCT = -3;
+   // returned by submitSupplyRequest when no warehouse can supply the store.
+   public static final int SUPPLY_NO_WAREHOUSE = -1;
+
    /**
     * Creates a new instance of Retail shop
     *
@@ -50,15 +106,40 @@ public class Retail {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Retail(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, null);
+   }//end Retail
+
+   /**
+    * Creates a new session of Retail shop that publishes to the change
+    * event stream and writes to the slow query log of another instance, so
+    * sessions of one process keep one sequence and one set of log files.
+    *
+    * @param dbname the name of the database
+    * @param dbport the server port
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param parent the instance owning the stream and the log, or null
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Retail(String dbname, String dbport, String user, String passwd, Retail parent) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + JDBC_OPTIONS;
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._parent = parent;
+         this._events = parent != null ? parent._events : ChangeEventStream.fromProperties();
+         this._replicas = ReplicaRouter.fromProperties(this._connection, user, passwd);
+         this._shards = ShardRouter.fromProperties(user, passwd);
+         this._slowLog = parent != null ? parent._slowLog : SlowQueryLog.fromProperties(this);
+         this._rollups = SalesRollups.fromProperties(this);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -73,6 +154,32 @@ public class Retail {
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+
+   // Method to calculate great-circle distance in miles between two latitude, longitude pairs.
+   public double calculateDistanceMiles (double lat1, double long1, double lat2, double long2){
+      double dLat = Math.toRadians(lat2 - lat1);
+      double dLong = Math.toRadians(long2 - long1);
+      double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+               + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLong / 2) * Math.sin(dLong / 2);
+      return 2 * EARTH_RADIUS_MILES * Math.asin(Math.min(1.0, Math.sqrt(h)));
+   }
+
+   /**
+    * Builds the query listing the stores in range of a user, as
+    * (storeID, name, dist). The gist index on the store location serves the
+    * circle prefilter, the distance function gives the exact cut.
+    *
+    * @param userID the user whose location is the center of the range
+    * @return the range query string
+    */
+   public static String storesInRangeQuery(String userID){
+      if (DISTANCE_METRIC.equals("miles")) {
+         // widest longitude span of the range, taken at the latitude closest to a pole.
+         String radius = String.format("%d / (69.0 * greatest(cos(radians(least(abs(u.latitude) + %d / 69.0, 89.0))), 0.01))", STORE_RANGE, STORE_RANGE);
+         return String.format("select s.storeID, s.name, calculate_distance_miles(u.latitude, u.longitude, s.latitude, s.longitude) as dist from users u, store s where u.userID = '%s' and point(s.latitude, s.longitude) <@ circle(point(u.latitude, u.longitude), %s) and calculate_distance_miles(u.latitude, u.longitude, s.latitude, s.longitude) < %d", userID, radius, STORE_RANGE);
+      }
+      return String.format("select s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) as dist from users u, store s where u.userID = '%s' and point(s.latitude, s.longitude) <@ circle(point(u.latitude, u.longitude), %d) and calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) < %d", userID, STORE_RANGE, STORE_RANGE);
+   }//end storesInRangeQuery
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -81,16 +188,172 @@ public class Retail {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
+      long start = System.nanoTime ();
+      Connection conn = writeConnection ();
+
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      int rowCount = stmt.executeUpdate (sql);
 
       // close the instruction
       stmt.close ();
+      logQuery (sql, rowCount, start, conn);
+
+      // later reads must see this write, even on a replica.
+      if (this._replicas != null && conn == this._connection && conn.getAutoCommit ())
+         this._replicas.noteWrite();
    }//end executeUpdate
 
+   /**
+    * Method to start a transaction on the connection the current operation
+    * writes to. The statements that follow run in the transaction until
+    * commitTransaction or rollbackTransaction is called.
+    *
+    * @throws java.sql.SQLException when failed to start the transaction
+    */
+   public void beginTransaction () throws SQLException {
+      writeConnection ().setAutoCommit (false);
+   }//end beginTransaction
+
+   /**
+    * Method to commit the transaction started by beginTransaction.
+    *
+    * @throws java.sql.SQLException when failed to commit
+    */
+   public void commitTransaction () throws SQLException {
+      Connection conn = writeConnection ();
+      conn.commit ();
+      conn.setAutoCommit (true);
+      if (this._replicas != null && conn == this._connection)
+         this._replicas.noteWrite();
+   }//end commitTransaction
+
+   /**
+    * Method to roll back the transaction started by beginTransaction.
+    */
+   public void rollbackTransaction () {
+      Connection conn = writeConnection ();
+      try{
+         conn.rollback ();
+         conn.setAutoCommit (true);
+      }catch (SQLException e){
+         // ignored, the connection is reset by the server.
+      }
+   }//end rollbackTransaction
+
+   // the connection statements of the current operation write to.
+   private Connection writeConnection () {
+      return this._storeConnection != null ? this._storeConnection : this._connection;
+   }
+
+   /**
+    * Method to execute an update SQL statement on every shard, for changes
+    * that are not scoped to one store. Without shards it is the same as
+    * executeUpdate.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeBroadcastUpdate (String sql) throws SQLException {
+      if (this._shards == null) {
+         executeUpdate (sql);
+         return;
+      }
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      for (Connection shard : this._shards.all()) {
+         Statement stmt = shard.createStatement ();
+         rowCount += stmt.executeUpdate (sql);
+         stmt.close ();
+      }
+      logQuery (sql, rowCount, start, null);
+   }//end executeBroadcastUpdate
+
+   /**
+    * Method to scope the operations that follow to one store, so their
+    * statements run on the shard of that store.
+    *
+    * @param storeID the store the operation works on
+    */
+   public void setStore (int storeID) {
+      if (this._shards != null)
+         this._storeConnection = this._shards.forStore(storeID);
+   }//end setStore
+
+   /**
+    * Method to end the store scope set by setStore.
+    */
+   public void clearStore () {
+      this._storeConnection = null;
+   }//end clearStore
+
+   /**
+    * Method to mark the operations that follow as read-only, so their
+    * queries may be served by a replica.
+    *
+    * @param readOnly true while a read-only operation runs
+    */
+   public void setReadOnly (boolean readOnly) {
+      this._readOnly = readOnly;
+   }//end setReadOnly
+
+   /**
+    * Method to name the operation the statements that follow belong to, for
+    * the slow query log.
+    *
+    * @param operation the operation name
+    */
+   public void setOperation (String operation) {
+      this._operation = operation;
+   }//end setOperation
+
+   // hands a finished statement to the slow query log, with the connection
+   // it ran on, null when it ran on every shard.
+   private void logQuery (String sql, int rowCount, long start, Connection node) {
+      if (this._slowLog != null)
+         this._slowLog.record (this._operation, sql, rowCount, System.nanoTime () - start, node);
+   }
+
+   /*
+    * Issues a query on the shard of the current store, on a replica while a
+    * read-only operation runs, or on the primary. A replica that is down is
+    * taken out of rotation and the query is retried on the primary; any
+    * other failure is the query's and is thrown.
+    * @return the result set, close it through its statement
+    **/
+   private ResultSet runQuery (String query) throws SQLException {
+      return runStatements (query).getResultSet ();
+   }//end runQuery
+
+   /*
+    * Issues one or more ';' separated statements on the connection runQuery
+    * would use. The driver sends them together and syncs once, so they
+    * cost a single round trip.
+    * @return the statement positioned on the first result, close it
+    **/
+   private Statement runStatements (String sql) throws SQLException {
+      Connection conn = this._connection;
+      if (this._storeConnection != null)
+         conn = this._storeConnection;
+      else if (this._readOnly && this._replicas != null)
+         conn = this._replicas.forRead();
+      Statement stmt = conn.createStatement ();
+      try{
+         stmt.execute (sql);
+         return stmt;
+      }catch (SQLException e){
+         stmt.close ();
+         if (conn == this._connection || conn == this._storeConnection || !ReplicaRouter.isUnavailable(conn, e))
+            throw e;
+         this._replicas.markDown(conn);
+         stmt = this._connection.createStatement ();
+         stmt.execute (sql);
+         return stmt;
+      }
+   }//end runStatements
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -101,11 +364,10 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
+      long start = System.nanoTime ();
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = runQuery (query);
+      Statement stmt = rs.getStatement ();
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -130,10 +392,96 @@ public class Retail {
          System.out.println ();
          ++rowCount;
       }//end while
+      Connection node = stmt.getConnection ();
       stmt.close ();
+      logQuery (query, rowCount, start, node);
       return rowCount;
    }//end executeQuery
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) that
+    * spans stores.  On a sharded deployment the query runs on every shard
+    * and the sorted results are merged.  The results are output to
+    * standard out.
+    *
+    * @param query the input query string, sorted on sortColumns
+    * @param sortColumns the 0-based columns the query sorts on, in order
+    * @param descending whether the query sorts in descending order
+    * @param limit the LIMIT of the query, 0 for none
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeScatterQueryAndPrintResult (String query, int[] sortColumns, boolean descending, int limit) throws SQLException {
+      if (this._shards == null)
+         return executeQueryAndPrintResult (query);
+
+      List<String> header = new ArrayList<String>();
+      List<List<String>> result = executeScatterQueryAndReturnResult (query, sortColumns, descending, limit, header);
+      printResult (header, result);
+      return result.size();
+   }//end executeScatterQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) that
+    * spans stores, like executeScatterQueryAndPrintResult, and return the
+    * results as a list of records.
+    *
+    * @param query the input query string, sorted on sortColumns
+    * @param sortColumns the 0-based columns the query sorts on, in order
+    * @param descending whether the query sorts in descending order
+    * @param limit the LIMIT of the query, 0 for none
+    * @param header filled with the column names
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeScatterQueryAndReturnResult (String query, int[] sortColumns, boolean descending, int limit,
+                                                                 List<String> header) throws SQLException {
+      long start = System.nanoTime ();
+      if (this._shards != null) {
+         List<List<String>> merged = this._shards.scatterGather (query, sortColumns, descending, limit, header);
+         logQuery (query, merged.size(), start, null);
+         return merged;
+      }
+
+      ResultSet rs = runQuery (query);
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      for (int i = 1; i <= numCol; ++i)
+         header.add (rsmd.getColumnName (i));
+      List<List<String>> result = new ArrayList<List<String>>();
+      while (rs.next()){
+         List<String> record = new ArrayList<String>();
+         for (int i = 1; i <= numCol; ++i)
+            record.add (rs.getString (i));
+         result.add (record);
+      }
+      Statement stmt = rs.getStatement ();
+      Connection node = stmt.getConnection ();
+      stmt.close ();
+      logQuery (query, result.size(), start, node);
+      return result;
+   }//end executeScatterQueryAndReturnResult
+
+   /**
+    * Method to output records to standard out in the layout of
+    * executeQueryAndPrintResult.
+    *
+    * @param header the column names
+    * @param result the records
+    */
+   public static void printResult (List<String> header, List<List<String>> result) {
+      if (!result.isEmpty()) {
+         for (String name : header)
+            System.out.print(name + "\t");
+         System.out.println();
+      }
+      for (List<String> record : result) {
+         for (String value : record)
+            System.out.print (value + "\t");
+         System.out.println ();
+      }
+   }//end printResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
@@ -144,11 +492,23 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      return executeQueryAndReturnResult (query, null);
+   }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT), like
+    * executeQueryAndReturnResult, and also return the column names.
+    *
+    * @param query the input query string
+    * @param header filled with the column names, or null
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, List<String> header) throws SQLException {
+      long start = System.nanoTime ();
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = runQuery (query);
+      Statement stmt = rs.getStatement ();
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -157,6 +517,9 @@ public class Retail {
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
       int rowCount = 0;
+      if (header != null)
+         for (int i = 1; i <= numCol; ++i)
+            header.add (rsmd.getColumnName (i));
 
       // iterates through the result set and saves the data returned by the query.
       boolean outputHeader = false;
@@ -167,10 +530,57 @@ public class Retail {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
+      Connection node = stmt.getConnection ();
       stmt.close ();
+      logQuery (query, result.size(), start, node);
       return result;
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute several independent queries (i.e. SELECT) in one
+    * round trip.  The queries are pipelined on the connection the current
+    * operation reads from and their results are returned in order.
+    *
+    * @param queries the input query strings
+    * @param headers filled with the column names of each query
+    * @return the result of each query as a list of records
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public List<List<List<String>>> executeQueriesAndReturnResult (List<String> queries, List<List<String>> headers) throws SQLException {
+      long start = System.nanoTime ();
+      StringBuilder sql = new StringBuilder ();
+      for (String query : queries) {
+         if (sql.length () > 0)
+            sql.append (";\n");
+         sql.append (query);
+      }
+      Statement stmt = runStatements (sql.toString ());
+
+      List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+      int rowCount = 0;
+      for (ResultSet rs = stmt.getResultSet (); rs != null; rs = stmt.getMoreResults () ? stmt.getResultSet () : null) {
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         List<String> header = new ArrayList<String>();
+         for (int i = 1; i <= numCol; ++i)
+            header.add (rsmd.getColumnName (i));
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i = 1; i <= numCol; ++i)
+               record.add (rs.getString (i));
+            result.add (record);
+         }
+         headers.add (header);
+         results.add (result);
+         rowCount += result.size ();
+      }
+      Connection node = stmt.getConnection ();
+      stmt.close ();
+      logQuery (sql.toString (), rowCount, start, node);
+      return results;
+   }//end executeQueriesAndReturnResult
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -180,11 +590,10 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
+       long start = System.nanoTime ();
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       ResultSet rs = runQuery (query);
+       Statement stmt = rs.getStatement ();
 
        int rowCount = 0;
 
@@ -192,7 +601,9 @@ public class Retail {
        while (rs.next()){
           rowCount++;
        }//end while
+       Connection node = stmt.getConnection ();
        stmt.close ();
+       logQuery (query, rowCount, start, node);
        return rowCount;
    }
 
@@ -214,10 +625,122 @@ public class Retail {
 	return -1;
    }
 
+   /**
+    * Method to open an additional physical connection to the same database.
+    * The caller owns the returned connection and must close it.
+    *
+    * @return a new connection using the settings of this instance
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openConnection
+
+   /**
+    * Method to open a physical connection to another node of this
+    * deployment, a replica or a shard, with the login of this instance.
+    * The caller owns the returned connection and must close it.
+    *
+    * @param url the JDBC URL of the node
+    * @return a new connection to the node
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection(String url) throws SQLException {
+      return DriverManager.getConnection(url, this._user, this._passwd);
+   }//end openConnection
+
+   /**
+    * Method to get the warehouse router, loading the warehouse and store
+    * coordinates on first use.
+    *
+    * @return the warehouse router
+    * @throws java.sql.SQLException when failed to load the coordinates
+    */
+   public synchronized WarehouseRouter getWarehouseRouter() throws SQLException {
+      if (this._router == null) {
+         // loaded on a side connection, the scheduler may call this concurrently.
+         Connection conn = openConnection();
+         try{
+            this._router = WarehouseRouter.load(conn);
+         }finally{
+            conn.close();
+         }
+      }
+      return this._router;
+   }//end getWarehouseRouter
+
+   /**
+    * Method to get the cache of order request keys.
+    *
+    * @return the request key cache
+    */
+   public RequestKeyCache getRequestKeys() {
+      return this._requestKeys;
+   }//end getRequestKeys
+
+   /**
+    * Method to get the cache of recent orders per customer.
+    *
+    * @return the order history cache
+    */
+   public OrderHistoryCache getOrderHistory() {
+      return this._orderHistory;
+   }//end getOrderHistory
+
+   /**
+    * Method to get the password authenticator of this instance.
+    *
+    * @return the password authenticator
+    */
+   public PasswordAuthenticator getAuthenticator() {
+      return this._auth;
+   }//end getAuthenticator
+
+   /**
+    * Method to get the stock ledger orders take their units through.
+    *
+    * @return the stock ledger
+    */
+   public StockLedger getLedger() {
+      return this._ledger;
+   }//end getLedger
+
+   /**
+    * Method to get the stream of changes made through this instance.
+    *
+    * @return the change event stream
+    */
+   public ChangeEventStream getEventStream() {
+      return this._events;
+   }//end getEventStream
+
+   /**
+    * Method to tell whether the store-scoped tables are spread over shards.
+    *
+    * @return true on a sharded deployment
+    */
+   public boolean isSharded() {
+      return this._shards != null;
+   }//end isSharded
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._connection != null)
+         this._ledger.releaseAll(this);
+      if (this._replenisher != null)
+         this._replenisher.stop();
+      if (this._rollups != null)
+         this._rollups.stop();
+      if (this._events != null && this._parent == null)
+         this._events.close();
+      if (this._replicas != null)
+         this._replicas.close();
+      if (this._shards != null)
+         this._shards.close();
+      if (this._slowLog != null && this._parent == null)
+         this._slowLog.close();
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -245,14 +768,13 @@ public class Retail {
       Greeting();
       Retail esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
          // instantiate the Retail object and creates a physical
          // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
          esql = new Retail (dbname, dbport, user, "");
+         esql._replenisher = ReplenishmentScheduler.fromProperties(esql);
 
          boolean keepon = true;
          while(keepon) {
@@ -293,10 +815,15 @@ public class Retail {
                 System.out.println("13. View All Product Information");
                 System.out.println("14. Update User Information");
                 System.out.println("15. Update Product Information");
+                System.out.println("16. Export Order Information");
+                System.out.println("17. View Sales Report");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
+                int choice = readChoice();
+                esql.setReadOnly(isReadOnlyChoice(choice));
+                esql.setOperation(operationName(choice));
+                switch (choice){
                    case 1: viewStores(esql); break;
                    case 2: viewProducts(esql); break;
                    case 3: placeOrder(esql); break;
@@ -312,10 +839,15 @@ public class Retail {
                    case 13: viewAllProductInformation(esql); break;
                    case 14: updateUserInformation(esql); break;
                    case 15: updateProductInformation(esql); break;
+                   case 16: exportOrderInformation(esql); break;
+                   case 17: viewSalesReport(esql); break;
 
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
+                esql.setReadOnly(false);
+                esql.clearStore();
+                esql.setOperation("main");
               }
             }
          }//end while
@@ -325,6 +857,8 @@ public class Retail {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               if (Boolean.getBoolean("retail.stats"))
+                  System.out.println(esql.getOrderHistory());
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
@@ -335,6 +869,46 @@ public class Retail {
       }//end try
    }//end main
 
+   /*
+    * Tells whether a user menu choice only reads, so it may run on a replica.
+    * Placing an order reads stock before writing and stays on the primary.
+    **/
+   public static boolean isReadOnlyChoice(int choice) {
+      switch (choice){
+         case 1: case 2: case 4: case 6: case 7: case 8:
+         case 10: case 11: case 12: case 13: case 16: case 17:
+            return true;
+         default:
+            return false;
+      }
+   }//end isReadOnlyChoice
+
+   /*
+    * Names a user menu choice after the method that implements it.
+    **/
+   public static String operationName(int choice) {
+      switch (choice){
+         case 1: return "viewStores";
+         case 2: return "viewProducts";
+         case 3: return "placeOrder";
+         case 4: return "viewRecentOrders";
+         case 5: return "updateProduct";
+         case 6: return "viewRecentUpdates";
+         case 7: return "viewPopularProducts";
+         case 8: return "viewPopularCustomers";
+         case 9: return "placeProductSupplyRequests";
+         case 10: return "viewAllOrderInformation";
+         case 11: return "viewAllProductSupplyRequests";
+         case 12: return "viewAllUserInformation";
+         case 13: return "viewAllProductInformation";
+         case 14: return "updateUserInformation";
+         case 15: return "updateProductInformation";
+         case 16: return "exportOrderInformation";
+         case 17: return "viewSalesReport";
+         default: return "main";
+      }
+   }//end operationName
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -378,9 +952,18 @@ public class Retail {
          
          String type="Customer";
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+			// the password is only stored hashed, in UserCredentials.
+			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','', %s, %s,'%s') RETURNING userID", name, latitude, longitude, type);
 
-         esql.executeUpdate(query);
+         esql.beginTransaction();
+         try{
+            int userID = Integer.parseInt(esql.executeQueryAndReturnResult(query).get(0).get(0));
+            esql.getAuthenticator().setPassword(esql, userID, password);
+            esql.commitTransaction();
+         }catch(SQLException e){
+            esql.rollbackTransaction();
+            throw e;
+         }
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -403,10 +986,7 @@ public class Retail {
 
          esql.userId = userID;
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND userID = '%s' AND password = '%s'", name, userID, password);
-         int userNum = esql.executeQuery(query);
-
-	 if (userNum > 0)
+	 if (authenticate(esql, name, userID, password))
 		return name;
          return null;
       }catch(Exception e){
@@ -415,14 +995,32 @@ public class Retail {
       }
    }//end
 
+   /**
+    * Checks the credentials of a user without prompting.
+    *
+    * @param esql the Retail instance
+    * @param name the user name
+    * @param userID the user id
+    * @param password the password
+    * @return true if the credentials match a user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static boolean authenticate(Retail esql, String name, String userID, String password) throws SQLException {
+      int uID;
+      try{
+         uID = Integer.parseInt(userID.trim());
+      }catch(NumberFormatException e){
+         return false;
+      }
+      return esql.getAuthenticator().authenticate(esql, name, uID, password);
+   }//end authenticate
+
    public static String checkManager(Retail esql){
       try{
          System.out.print("Enter Manager ID: ");
          String managerID = in.readLine();
 
-         String query = String.format("SELECT U.type FROM USERS U WHERE U.userID = '%s' AND U.type = 'manager' OR U.type = 'admin'", managerID);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (isManager(esql, managerID))
 		return managerID;
          return null;
       }catch(Exception e){
@@ -436,9 +1034,7 @@ public class Retail {
          System.out.print("Enter Admin ID: ");
          String adminID = in.readLine();
 
-         String query = String.format("SELECT U.type FROM USERS U WHERE U.userID = '%s' AND U.type = 'admin'", adminID);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (isAdmin(esql, adminID))
 		return adminID;
          return null;
       }catch(Exception e){
@@ -452,9 +1048,7 @@ public class Retail {
          System.out.print("Enter Store ID: ");
          String storeID = in.readLine();
 
-         String query = String.format("SELECT S.storeID FROM Store S WHERE S.storeID = '%s' AND S.managerID = '%s'", storeID, esql.userId);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (managesStore(esql, esql.userId, storeID))
 		return storeID;
          return null;
       }catch(Exception e){
@@ -465,9 +1059,7 @@ public class Retail {
 
    public static String checkManager_Admin(Retail esql){
       try{
-         String query = String.format("SELECT U.type FROM USERS U WHERE U.userID = '%s' AND U.type = 'manager' OR U.type = 'admin'", esql.userId);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (isManager(esql, esql.userId))
 		return esql.userId;
          return null;
       }catch(Exception e){
@@ -476,34 +1068,100 @@ public class Retail {
       }
    }//end
 
+   /**
+    * Checks that a user is a manager or an admin, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param userID the user id as entered
+    * @return true if the user may use the manager options
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static boolean isManager(Retail esql, String userID) throws SQLException {
+      String query = String.format("SELECT U.type FROM USERS U WHERE U.userID = '%s' AND (U.type = 'manager' OR U.type = 'admin')", userID);
+      return esql.executeQuery(query) > 0;
+   }//end isManager
+
+   /**
+    * Checks that a user is an admin, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param userID the user id as entered
+    * @return true if the user is an admin
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static boolean isAdmin(Retail esql, String userID) throws SQLException {
+      String query = String.format("SELECT U.type FROM USERS U WHERE U.userID = '%s' AND U.type = 'admin'", userID);
+      return esql.executeQuery(query) > 0;
+   }//end isAdmin
+
+   /**
+    * Checks that a store is managed by a user, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param managerID the manager id
+    * @param storeID the store id as entered
+    * @return true if the user manages the store
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static boolean managesStore(Retail esql, String managerID, String storeID) throws SQLException {
+      String query = String.format("SELECT S.storeID FROM Store S WHERE S.storeID = '%s' AND S.managerID = '%s'", storeID, managerID);
+      return esql.executeQuery(query) > 0;
+   }//end managesStore
+
 // Rest of the functions definition go in here
 
    public static void viewStores(Retail esql) {
       try{
-      String query = String.format("select s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) as dist from users u, store s where u.userID = '%s' and calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) < 30", esql.userId);
-      
-      int rowCount = esql.executeQuery(query);
-      esql.executeQueryAndPrintResult(query);
-      System.out.println ("total row(s): " + rowCount);
+      List<String> header = new ArrayList<String>();
+      List<List<String>> result = storesInRange(esql, esql.userId, header);
+      printResult(header, result);
+      System.out.println ("total row(s): " + result.size());
       }
       catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }
+
+   /**
+    * Returns the stores within 30 miles of a user, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param userID the user
+    * @param header filled with the column names
+    * @return the stores
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> storesInRange(Retail esql, String userID, List<String> header) throws SQLException {
+      return esql.executeQueryAndReturnResult(storesInRangeQuery(userID), header);
+   }//end storesInRange
    public static void viewProducts(Retail esql) {
       try{
-	      String query = "SELECT * FROM Product Where storeID = ";
          System.out.print("Enter Store ID: ");
          String input = in.readLine();
-         query += input;
 
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = storeProducts(esql, Integer.parseInt(input.trim()), header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns the products of a store with their stock, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param sID the store
+    * @param header filled with the column names
+    * @return the products
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> storeProducts(Retail esql, int sID, List<String> header) throws SQLException {
+      esql.setStore(sID);
+      String query = "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock Where storeID = " + sID;
+      return esql.executeQueryAndReturnResult(query, header);
+   }//end storeProducts
    public static void placeOrder(Retail esql) {
       try{
          String authorisedUser = checkManager_Admin(esql);
@@ -511,45 +1169,112 @@ public class Retail {
             System.out.println("Must be logged in as a customer!");
             return;
          }
-         boolean found = false;
          System.out.print("\tEnter StoreID: ");
          String storeID = in.readLine();
          System.out.print("\tEnter Product Name: ");
          String proName = in.readLine();
          System.out.print("\tEnter # of Units: ");
          String unitSize = in.readLine();
+         System.out.print("\tEnter request key (blank for none): ");
+         String requestKey = in.readLine().trim();
          int uSize = Integer.parseInt(unitSize);
          int uID = Integer.parseInt(esql.userId);
-         String query = String.format("select s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) as dist from users u, store s where u.userId = '%s' and calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) < 30", uID);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         int size = result.size();
-         for(int i =0; i < size;i++){
-         if(result.get(i).contains(storeID)){
-                int sID = Integer.parseInt(storeID);
-                String query2 =  String.format("select numberOfUnits from product where storeId = '%d' AND productName = '%s'", sID,proName);
-                List<List<String>> res = esql.executeQueryAndReturnResult(query2);
-                int remain = Integer.parseInt(res.get(0).get(0)) - uSize;
-                if(remain >= 0){
-                query = String.format("INSERT INTO ORDERS (customerID, storeID, productName, unitsOrdered,orderTime) VALUES ('%d', '%d', '%s','%d',NOW())", uID,sID, proName,uSize);
-                esql.executeUpdate(query);
-                query = String.format("UPDATE PRODUCT SET numberOfUnits = '%d' WHERE productName = '%s' AND storeID = '%d'",remain,proName,sID);
-                esql.executeUpdate(query);
-                }
-                else{
-                System.out.print("Not enough inventory in store!");
-                }
-                found = true;
-                break;
+         int sID = Integer.parseInt(storeID);
+         int orderNumber = submitOrder(esql, uID, sID, proName, uSize, requestKey.isEmpty() ? null : requestKey);
+         switch (orderNumber){
+            case ORDER_OUT_OF_RANGE: System.out.print("Store not in range"); break;
+            case ORDER_NO_STOCK: System.out.print("Not enough inventory in store!"); break;
+            case ORDER_NO_PRODUCT: System.out.print("Product not found in store!"); break;
+            default: System.out.println("Order number: " + orderNumber); break;
          }
         }
-        if(!found){
-                System.out.print("Store not in range");
-        }
-        }
         catch(Exception e){
                 System.err.println (e.getMessage ());
         }
    }
+
+   /**
+    * Places an order without prompting. With a request key, a submission
+    * that repeats an earlier one returns the original order number and
+    * changes nothing.
+    *
+    * @param esql the Retail instance
+    * @param uID the customer placing the order
+    * @param sID the store ordered from
+    * @param proName the product ordered
+    * @param uSize the number of units ordered
+    * @param requestKey the client request key, or null
+    * @return the order number, or one of the ORDER_* codes
+    * @throws java.sql.SQLException when failed to place the order
+    */
+   public static int submitOrder(Retail esql, int uID, int sID, String proName, int uSize, String requestKey) throws SQLException {
+      esql.getLedger().releaseIdle(esql);
+      esql.setStore(sID);
+      if(requestKey != null){
+         Integer prior = esql.getRequestKeys().find(esql, uID, requestKey);
+         if(prior != null){
+            return prior;
+         }
+      }
+      String query = storesInRangeQuery(String.valueOf(uID)) + String.format(" and s.storeID = '%d'", sID);
+      if(esql.executeQuery(query) == 0){
+         return ORDER_OUT_OF_RANGE;
+      }
+
+      int orderNumber;
+      int remain;
+      List<String> placed;
+      esql.beginTransaction();
+      try{
+         int[] reserved = esql.getLedger().reserve(esql, sID, proName, uSize);
+         if(reserved == null){
+            esql.rollbackTransaction();
+            return ORDER_NO_PRODUCT;
+         }
+         int productID = reserved[0];
+         remain = reserved[1];
+         if(remain < 0){
+            esql.rollbackTransaction();
+            if(esql._replenisher != null){
+               esql._replenisher.markChanged(sID, proName);
+            }
+            return ORDER_NO_STOCK;
+         }
+         // returns the order as the recent orders view shows it; the sales rollups are queued by a trigger.
+         query = String.format("INSERT INTO ORDERS (customerID, productID, unitsOrdered,orderTime) VALUES ('%d', '%d', '%d',NOW()) RETURNING orderNumber, '%d', (SELECT S.name FROM Store S WHERE S.storeID = '%d'), '%s', unitsOrdered, orderTime", uID, productID, uSize, sID, sID, proName);
+         placed = esql.executeQueryAndReturnResult(query).get(0);
+         orderNumber = Integer.parseInt(placed.get(0));
+         if(requestKey != null){
+            query = String.format("INSERT INTO OrderRequestKeys (customerID, requestKey, orderNumber, createdOn) VALUES ('%d', '%s', '%d', NOW())", uID, RequestKeyCache.escape(requestKey), orderNumber);
+            esql.executeUpdate(query);
+         }
+         esql.commitTransaction();
+      }catch(SQLException e){
+         esql.rollbackTransaction();
+         // a concurrent submission with the same key committed first.
+         if(requestKey != null){
+            Integer prior = esql.getRequestKeys().find(esql, uID, requestKey);
+            if(prior != null){
+               return prior;
+            }
+         }
+         throw e;
+      }catch(RuntimeException e){
+         esql.rollbackTransaction();
+         throw e;
+      }
+
+      if(requestKey != null){
+         esql.getRequestKeys().remember(uID, requestKey, orderNumber);
+      }
+      esql.getOrderHistory().append(uID, new ArrayList<String>(placed.subList(1, 6)));
+      esql.getEventStream().publish(ChangeEventStream.ORDER_PLACED, "orderNumber", orderNumber, "customerID", uID, "storeID", sID,
+                                    "productName", proName, "unitsOrdered", uSize, "numberOfUnits", remain);
+      if(esql._replenisher != null){
+         esql._replenisher.markChanged(sID, proName);
+      }
+      return orderNumber;
+   }//end submitOrder
    public static void viewRecentOrders(Retail esql) {
       try{
          String authorisedUser = checkManager_Admin(esql);
@@ -557,15 +1282,33 @@ public class Retail {
             System.out.println("Must be logged in as a customer!");
             return;
          }
-	      String query = String.format("SELECT O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM Users U, Store S, Orders O WHERE U.userID= '%s' AND U.userID=O.customerID AND S.storeID=O.storeID ORDER BY O.orderTime DESC LIMIT 5", esql.userId);
-         
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<List<String>> result = recentOrders(esql, Integer.parseInt(esql.userId));
+         printResult(esql.getOrderHistory().header(), result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns the most recent orders of a customer, newest first, from the
+    * order history cache or, on a miss, from the database.
+    *
+    * @param esql the Retail instance
+    * @param uID the customer
+    * @return the orders as (storeID, name, productName, unitsOrdered, orderTime)
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> recentOrders(Retail esql, int uID) throws SQLException {
+      List<List<String>> result = esql.getOrderHistory().get(uID);
+      if(result == null){
+         String query = String.format("SELECT P.storeID, S.name, P.productName, O.unitsOrdered, O.orderTime FROM Users U, Store S, Orders O, Product P WHERE U.userID= '%d' AND U.userID=O.customerID AND P.productID=O.productID AND S.storeID=P.storeID ORDER BY O.orderTime DESC LIMIT %d", uID, OrderHistoryCache.RECENT);
+         List<String> header = new ArrayList<String>();
+         result = esql.executeScatterQueryAndReturnResult(query, new int[] {4}, true, OrderHistoryCache.RECENT, header);
+         esql.getOrderHistory().put(uID, header, result);
+      }
+      return result;
+   }//end recentOrders
    public static void updateProduct(Retail esql) {
       try{    
                String authorisedUser = "";
@@ -618,15 +1361,33 @@ public class Retail {
                 int mID = Integer.parseInt(authorisedUser);
                 int uSize = Integer.parseInt(unitSize);
                 int uCost = Integer.parseInt(unitCost);
-                String query = String.format("UPDATE PRODUCT SET numberOfUnits = '%d', pricePerUnit = '%d' WHERE productName = '%s' AND storeID = '%d'",uSize,uCost,proName,sID); 
-                esql.executeUpdate(query);
-                String query2 = String.format("INSERT INTO PRODUCTUPDATES (managerID,storeID,productName,updatedOn) VALUES ('%d','%d','%s',NOW())",mID,sID,proName);                      
-                esql.executeUpdate(query2);
+                submitProductUpdate(esql, mID, sID, proName, uSize, uCost);
         }
         catch(Exception e){
                 System.err.println (e.getMessage ());
         }
    }
+
+   /**
+    * Sets the stock and price of a product and records the update, without
+    * prompting. The caller checks that the user may update the store.
+    *
+    * @param esql the Retail instance
+    * @param mID the manager or admin making the update
+    * @param sID the store of the product
+    * @param proName the product
+    * @param uSize the new number of units
+    * @param uCost the new price per unit
+    * @throws java.sql.SQLException when failed to update the product
+    */
+   public static void submitProductUpdate(Retail esql, int mID, int sID, String proName, int uSize, int uCost) throws SQLException {
+      esql.setStore(sID);
+      StockLedger.setStock(esql, sID, proName, uSize, uCost);
+      String query2 = String.format("INSERT INTO PRODUCTUPDATES (managerID,productID,updatedOn) SELECT '%d',productID,NOW() FROM Product WHERE storeID = '%d' AND productName = '%s'",mID,sID,proName);
+      esql.executeUpdate(query2);
+      esql.getEventStream().publish(ChangeEventStream.PRODUCT_UPDATED, "managerID", mID, "storeID", sID,
+                                    "productName", proName, "numberOfUnits", uSize, "pricePerUnit", uCost);
+   }//end submitProductUpdate
    public static void viewRecentUpdates(Retail esql) {
       try{
             String authorisedUser = "";
@@ -669,15 +1430,29 @@ public class Retail {
                   default : System.out.println("Unrecognized choice!"); break;
                }
 
-	      String query = String.format("SELECT P.updateNumber, P.managerID, P.storeID, P.productName, P.updatedOn FROM ProductUpdates P, Users U WHERE U.userID=P.managerID AND P.storeID = '%s' ORDER BY P.updatedOn DESC LIMIT 5", storeID);
-         
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = recentUpdates(esql, Integer.parseInt(storeID.trim()), header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns the 5 most recent product updates of a store, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param sID the store
+    * @param header filled with the column names
+    * @return the rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> recentUpdates(Retail esql, int sID, List<String> header) throws SQLException {
+      esql.setStore(sID);
+      String query = String.format("SELECT PU.updateNumber, PU.managerID, P.storeID, P.productName, PU.updatedOn FROM ProductUpdates PU, Product P, Users U WHERE U.userID=PU.managerID AND P.productID=PU.productID AND P.storeID = '%d' ORDER BY PU.updatedOn DESC LIMIT 5", sID);
+      return esql.executeQueryAndReturnResult(query, header);
+   }//end recentUpdates
    public static void viewPopularProducts(Retail esql) {
       try{
             String authorisedUser = "";
@@ -720,16 +1495,30 @@ public class Retail {
                   default : System.out.println("Unrecognized choice!"); break;
                }
 
-		 String query = String.format("SELECT productName,COUNT(*) AS Orders_Made FROM ORDERS WHERE storeID = '%s' GROUP BY productName ORDER BY COUNT(*) DESC LIMIT 5", storeID);
-
-       int rowCount = esql.executeQuery(query);
-       esql.executeQueryAndPrintResult(query);
-       System.out.println ("total row(s): " + rowCount);		
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = popularProducts(esql, Integer.parseInt(storeID.trim()), header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }
       catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }
+
+   /**
+    * Returns the 5 products of a store ordered most often, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param sID the store
+    * @param header filled with the column names
+    * @return the rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> popularProducts(Retail esql, int sID, List<String> header) throws SQLException {
+      esql.setStore(sID);
+      String query = String.format("SELECT P.productName,COUNT(*) AS Orders_Made FROM ORDERS O, Product P WHERE P.productID = O.productID AND P.storeID = '%d' GROUP BY P.productName ORDER BY COUNT(*) DESC LIMIT 5", sID);
+      return esql.executeQueryAndReturnResult(query, header);
+   }//end popularProducts
    public static void viewPopularCustomers(Retail esql) {
       try{
             String authorisedUser = "";
@@ -772,15 +1561,29 @@ public class Retail {
                   default : System.out.println("Unrecognized choice!"); break;
                }
 
-	      String query = String.format("SELECT O.storeID, U.name, O.customerID, COUNT(*) AS Orders_Made FROM Users U, Store S, Orders O WHERE U.userID=O.customerID AND S.storeID=O.storeID AND O.storeID = '%s' GROUP BY O.customerID, O.storeID, U.name ORDER BY COUNT(*) DESC LIMIT 5", storeID);
-         
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = popularCustomers(esql, Integer.parseInt(storeID.trim()), header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns the 5 customers of a store who ordered most often, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param sID the store
+    * @param header filled with the column names
+    * @return the rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> popularCustomers(Retail esql, int sID, List<String> header) throws SQLException {
+      esql.setStore(sID);
+      String query = String.format("SELECT P.storeID, U.name, O.customerID, COUNT(*) AS Orders_Made FROM Users U, Orders O, Product P WHERE U.userID=O.customerID AND P.productID=O.productID AND P.storeID = '%d' GROUP BY O.customerID, P.storeID, U.name ORDER BY COUNT(*) DESC LIMIT 5", sID);
+      return esql.executeQueryAndReturnResult(query, header);
+   }//end popularCustomers
    public static void placeProductSupplyRequests(Retail esql) {
       try{
                String authorisedUser = "";
@@ -828,23 +1631,57 @@ public class Retail {
                 String proName = in.readLine();
                 System.out.print("\tEnter # of Units: ");
                 String unitSize = in.readLine();
-                System.out.print("\tEnter Warehouse ID: ");
-                String warehouseID = in.readLine();
-                int wID = Integer.parseInt(warehouseID);
-                String query2 =  String.format("select numberOfUnits from product where storeId = '%d' AND productName = '%s'", sID,proName);
+                System.out.print("\tEnter Warehouse ID (blank for nearest): ");
+                String warehouseID = in.readLine().trim();
                 int uSize = Integer.parseInt(unitSize);
-                List<List<String>> res = esql.executeQueryAndReturnResult(query2);
-                int updateNum = Integer.parseInt(res.get(0).get(0)) + uSize;
-                String query = String.format("UPDATE PRODUCT SET numberOfUnits = '%d' WHERE productName = '%s' AND storeID = '%d'",updateNum,proName,sID);
-                esql.executeUpdate(query);
-                query = String.format("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES ('%d','%d', '%d', '%s','%d')", mID, wID, sID, proName, uSize);
-                esql.executeUpdate(query);
+                int wID = submitSupplyRequest(esql, mID, sID, proName, uSize, warehouseID.isEmpty() ? null : Integer.valueOf(warehouseID));
+                if(wID == SUPPLY_NO_WAREHOUSE){
+                   System.out.print("ERROR: No warehouse found for store\n\n");
+                   return;
+                }
+                if(warehouseID.isEmpty()){
+                   System.out.println("\tRouted to nearest warehouse: " + wID);
+                }
         }
         catch(Exception e){
                 System.err.println (e.getMessage());
 
         }
    }
+
+   /**
+    * Restocks a product and records the supply request, without prompting.
+    * The caller checks that the user may update the store.
+    *
+    * @param esql the Retail instance
+    * @param mID the manager or admin making the request
+    * @param sID the store of the product
+    * @param proName the product
+    * @param uSize the number of units requested
+    * @param wID the warehouse, or null for the one nearest to the store
+    * @return the warehouse supplying the units, or SUPPLY_NO_WAREHOUSE
+    * @throws java.sql.SQLException when failed to record the request
+    */
+   public static int submitSupplyRequest(Retail esql, int mID, int sID, String proName, int uSize, Integer wID) throws SQLException {
+      esql.setStore(sID);
+      if(wID == null){
+         WarehouseRouter.Route route = esql.getWarehouseRouter().nearest(sID);
+         if(route == null){
+            return SUPPLY_NO_WAREHOUSE;
+         }
+         wID = route.warehouseID;
+      }
+      String query2 =  String.format("select numberOfUnits from ProductStock where storeId = '%d' AND productName = '%s'", sID,proName);
+      List<List<String>> res = esql.executeQueryAndReturnResult(query2);
+      int updateNum = Integer.parseInt(res.get(0).get(0)) + uSize;
+      String query = String.format("UPDATE PRODUCT SET numberOfUnits = numberOfUnits + '%d' WHERE productName = '%s' AND storeID = '%d'",uSize,proName,sID);
+      esql.executeUpdate(query);
+      query = String.format("INSERT INTO ProductSupplyRequests (managerID, warehouseID, productID, unitsRequested) SELECT '%d','%d', productID,'%d' FROM Product WHERE storeID = '%d' AND productName = '%s'", mID, wID, uSize, sID, proName);
+      esql.executeUpdate(query);
+      esql.getEventStream().publish(ChangeEventStream.SUPPLY_REQUESTED, "managerID", mID, "warehouseID", wID, "storeID", sID,
+                                    "productName", proName, "unitsRequested", uSize, "numberOfUnits", updateNum);
+      return wID;
+   }//end submitSupplyRequest
    public static void viewAllOrderInformation(Retail esql) {
       try{
             String authorisedUser = "";
@@ -887,19 +1724,32 @@ public class Retail {
                   default : System.out.println("Unrecognized choice!"); break;
                }
 
-	      String query = String.format("SELECT O.orderNumber, U.name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U WHERE O.customerID=U.userID AND O.storeID= '%s'", storeID);
-         
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = storeOrders(esql, Integer.parseInt(storeID.trim()), header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns every order of a store, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param sID the store
+    * @param header filled with the column names
+    * @return the rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> storeOrders(Retail esql, int sID, List<String> header) throws SQLException {
+      esql.setStore(sID);
+      String query = String.format("SELECT O.orderNumber, U.name, P.storeID, P.productName, O.orderTime FROM Orders O, Product P, Users U WHERE O.customerID=U.userID AND P.productID=O.productID AND P.storeID= '%d'", sID);
+      return esql.executeQueryAndReturnResult(query, header);
+   }//end storeOrders
    public static void viewAllProductSupplyRequests(Retail esql){
       try{
             boolean admin = false;
-            String query = "";
             String authorisedUser = "";
             String storeID = "";
             System.out.println('\n' + "OPTIONS");
@@ -939,20 +1789,34 @@ public class Retail {
                   default : System.out.println("Unrecognized choice!"); break;
                }
 
-         if(!admin){
-            query = String.format("SELECT * FROM ProductSupplyRequests WHERE storeID = '%s'", storeID);
-         }
-         else{
-            query = String.format("SELECT * FROM ProductSupplyRequests");
-         }
-         
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = supplyRequests(esql, admin ? null : Integer.valueOf(storeID.trim()), header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns the supply requests of a store, or of every store, without
+    * prompting.
+    *
+    * @param esql the Retail instance
+    * @param sID the store, or null for every store
+    * @param header filled with the column names
+    * @return the supply requests
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> supplyRequests(Retail esql, Integer sID, List<String> header) throws SQLException {
+      if(sID != null){
+         esql.setStore(sID);
+         String query = String.format("SELECT R.requestNumber, R.managerID, R.warehouseID, P.storeID, P.productName, R.unitsRequested FROM ProductSupplyRequests R, Product P WHERE P.productID = R.productID AND P.storeID = '%d'", sID);
+         return esql.executeQueryAndReturnResult(query, header);
+      }
+      String query = "SELECT R.requestNumber, R.managerID, R.warehouseID, P.storeID, P.productName, R.unitsRequested FROM ProductSupplyRequests R, Product P WHERE P.productID = R.productID ORDER BY P.storeID, R.requestNumber";
+      return esql.executeScatterQueryAndReturnResult(query, new int[] {3, 0}, false, 0, header);
+   }//end supplyRequests
    public static void viewAllUserInformation(Retail esql) {
       try{
          String authorisedUser = checkAdmin(esql);
@@ -965,15 +1829,26 @@ public class Retail {
             return;
          }
 
-	      String query = String.format("SELECT * FROM Users");
-         
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = allUsers(esql, header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns every user, without prompting.
+    *
+    * @param esql the Retail instance
+    * @param header filled with the column names
+    * @return the users
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> allUsers(Retail esql, List<String> header) throws SQLException {
+      return esql.executeQueryAndReturnResult("SELECT userID, name, password, latitude, longitude, type FROM Users", header);
+   }//end allUsers
    public static void viewAllProductInformation(Retail esql) {
       try{
          String authorisedUser = checkAdmin(esql);
@@ -986,20 +1861,32 @@ public class Retail {
             return;
          }
 
-	      String query = String.format("SELECT * FROM Product");
-         
-         int rowCount = esql.executeQuery(query);
-         esql.executeQueryAndPrintResult(query);
-         System.out.println ("total row(s): " + rowCount);
+         List<String> header = new ArrayList<String>();
+         List<List<String>> result = allProducts(esql, header);
+         printResult(header, result);
+         System.out.println ("total row(s): " + result.size());
       }catch(Exception e){
       	System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Returns the products of every store with their stock, without
+    * prompting.
+    *
+    * @param esql the Retail instance
+    * @param header filled with the column names
+    * @return the products
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<List<String>> allProducts(Retail esql, List<String> header) throws SQLException {
+      String query = "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock ORDER BY storeID, productName COLLATE \"C\"";
+      return esql.executeScatterQueryAndReturnResult(query, new int[] {0, 1}, false, 0, header);
+   }//end allProducts
    
    public static void updateUserInformation(Retail esql) {
       try{
       String authorisedUser = checkAdmin(esql);
-      String query = "";
       String userID = "";
       String uName = "";
       String uPass = "";
@@ -1035,17 +1922,13 @@ public class Retail {
          uID = Integer.parseInt(userID);
          uLat = Integer.parseInt(userLat);
          uLong = Integer.parseInt(userLong);
-         query = String.format("UPDATE USERS SET name ='%s', password ='%s', latitude ='%d', longitude ='%d', type = '%s' WHERE userID ='%d'", uName, uPass, uLat, uLong, uType,uID);
-         esql.executeUpdate(query);
+         submitUserUpdate(esql, uID, uName, uPass, uLat, uLong, uType);
             break;
          case 2:
             System.out.print("Input userID to delete: ");
             userID = in.readLine();
             uID = Integer.parseInt(userID);
-            query = String.format("DELETE FROM orders WHERE customerID = '%d'",uID);;
-            esql.executeUpdate(query);
-            query = String.format("DELETE FROM users WHERE userID = '%d'",uID);
-            esql.executeUpdate(query);
+            submitUserRemoval(esql, uID);
             break;
          case 3: return;
          default : System.out.println("Unrecognized choice!"); break;
@@ -1057,10 +1940,48 @@ public class Retail {
       System.err.println (e.getMessage());
       }
    }
+
+   /**
+    * Rewrites the details and password of a user, without prompting. The
+    * caller checks that the user is an admin.
+    *
+    * @param esql the Retail instance
+    * @param uID the user to update
+    * @param uName the new name
+    * @param uPass the new password
+    * @param uLat the new latitude
+    * @param uLong the new longitude
+    * @param uType the new type
+    * @throws java.sql.SQLException when failed to update the user
+    */
+   public static void submitUserUpdate(Retail esql, int uID, String uName, String uPass, double uLat, double uLong, String uType) throws SQLException {
+      String query = String.format("UPDATE USERS SET name ='%s', latitude ='%s', longitude ='%s', type = '%s' WHERE userID ='%d'", uName, uLat, uLong, uType,uID);
+      esql.executeUpdate(query);
+      esql.getAuthenticator().setPassword(esql, uID, uPass);
+      esql.getEventStream().publish(ChangeEventStream.USER_UPDATED, "userID", uID, "name", uName,
+                                    "latitude", uLat, "longitude", uLong, "type", uType);
+   }//end submitUserUpdate
+
+   /**
+    * Removes a user and their orders, without prompting. The caller checks
+    * that the user is an admin.
+    *
+    * @param esql the Retail instance
+    * @param uID the user to remove
+    * @throws java.sql.SQLException when failed to remove the user
+    */
+   public static void submitUserRemoval(Retail esql, int uID) throws SQLException {
+      String query = String.format("DELETE FROM orders WHERE customerID = '%d'",uID);
+      esql.executeBroadcastUpdate(query);
+      esql.getOrderHistory().invalidate(uID);
+      query = String.format("DELETE FROM users WHERE userID = '%d'",uID);
+      esql.executeUpdate(query);
+      esql.getAuthenticator().invalidate(uID);
+      esql.getEventStream().publish(ChangeEventStream.USER_REMOVED, "userID", uID);
+   }//end submitUserRemoval
    public static void updateProductInformation(Retail esql) {
       try{
       String authorisedUser = checkAdmin(esql);
-      String query = "";
       String proName = "";
       String nProName = "";
       String storeID = "";
@@ -1086,21 +2007,12 @@ public class Retail {
             int sID = Integer.parseInt(storeID);
             int nUnits = Integer.parseInt(numUnits);
             int pri = Integer.parseInt(price);
-
-            query = String.format("INSERT INTO PRODUCT (storeID,productName,numberOfUnits,pricePerUnit) VALUES ('%d','%s','%d','%d')",sID,proName,nUnits,pri);
-            esql.executeUpdate(query);
+            submitProductAddition(esql, sID, proName, nUnits, pri);
             break;
          case 2:
             System.out.print("Input Product name to delete: ");
             proName = in.readLine();
-            query = String.format("DELETE FROM Orders WHERE productName = '%s'",proName);
-            esql.executeUpdate(query);
-            query = String.format("DELETE FROM ProductUpdates WHERE productName = '%s'",proName);
-            esql.executeUpdate(query);
-            query = String.format("DELETE FROM ProductSupplyRequests  WHERE productName = '%s'",proName);
-            esql.executeUpdate(query);
-            query = String.format("DELETE FROM Product WHERE productName = '%s'",proName);
-            esql.executeUpdate(query);
+            submitProductRemoval(esql, proName);
             break;
          case 3: return;
          default : System.out.println("Unrecognized choice!"); break;
@@ -1113,5 +2025,182 @@ public class Retail {
       }
    }
 
+   /**
+    * Adds a product to a store, without prompting. The caller checks that
+    * the user is an admin.
+    *
+    * @param esql the Retail instance
+    * @param sID the store
+    * @param proName the new product
+    * @param nUnits the number of units in stock
+    * @param pri the price per unit
+    * @throws java.sql.SQLException when failed to add the product
+    */
+   public static void submitProductAddition(Retail esql, int sID, String proName, int nUnits, int pri) throws SQLException {
+      esql.setStore(sID);
+      String query = String.format("INSERT INTO PRODUCT (storeID,productName,numberOfUnits,pricePerUnit) VALUES ('%d','%s','%d','%d')",sID,proName,nUnits,pri);
+      esql.executeUpdate(query);
+      esql.getEventStream().publish(ChangeEventStream.PRODUCT_ADDED, "storeID", sID, "productName", proName,
+                                    "numberOfUnits", nUnits, "pricePerUnit", pri);
+   }//end submitProductAddition
+
+   /**
+    * Removes a product from every store, with its orders, updates and
+    * supply requests, without prompting. The caller checks that the user
+    * is an admin.
+    *
+    * @param esql the Retail instance
+    * @param proName the product
+    * @throws java.sql.SQLException when failed to remove the product
+    */
+   public static void submitProductRemoval(Retail esql, String proName) throws SQLException {
+      String query = String.format("DELETE FROM Orders WHERE productID IN (SELECT productID FROM Product WHERE productName = '%s')",proName);
+      esql.executeBroadcastUpdate(query);
+      esql.getOrderHistory().clear();
+      query = String.format("DELETE FROM ProductUpdates WHERE productID IN (SELECT productID FROM Product WHERE productName = '%s')",proName);
+      esql.executeBroadcastUpdate(query);
+      query = String.format("DELETE FROM ProductSupplyRequests WHERE productID IN (SELECT productID FROM Product WHERE productName = '%s')",proName);
+      esql.executeBroadcastUpdate(query);
+      query = String.format("DELETE FROM Product WHERE productName = '%s'",proName);
+      esql.executeBroadcastUpdate(query);
+      esql.getEventStream().publish(ChangeEventStream.PRODUCT_REMOVED, "productName", proName);
+   }//end submitProductRemoval
+   public static void exportOrderInformation(Retail esql) {
+      try{
+            String authorisedUser = "";
+            String storeID = "";
+            System.out.println('\n' + "OPTIONS");
+            System.out.println("-------");
+            System.out.println("1. Manager");
+            System.out.println("2. Admin");
+            System.out.println("3. Cancel");
+            switch (readChoice()){
+                  case 1: authorisedUser = checkManager(esql);
+                        if(authorisedUser == null){
+                                 System.out.print("ERROR: Not A Manager ID\n\n");
+                                 return;
+                        }
+                        if(!authorisedUser.equals(esql.userId)){
+                                 System.out.print("ERROR: Not Correct Manager ID\n\n");
+                                 return;
+                        }
+                        
+                        storeID = store_belongs_manager(esql);
+                        if(storeID == null){
+                                 System.out.print("ERROR: Invalid Store ID\n\n");
+                                 return;
+                        }; 
+                        break;
+                  case 2: authorisedUser = checkAdmin(esql);
+                        if(authorisedUser == null){
+                           System.out.print("ERROR: Not An Admin ID\n\n");
+                           return;
+                        }
+                        if(!authorisedUser.equals(esql.userId)){
+                           System.out.print("ERROR: Not Correct Admin ID\n\n");
+                           return;
+                        }
+                        System.out.print("\tEnter StoreID (blank for all stores): ");
+                        storeID = in.readLine().trim();
+                        break;
+                  case 3: return;
+                  default : System.out.println("Unrecognized choice!"); return;
+               }
+
+         System.out.print("\tEnter output directory: ");
+         String dir = in.readLine().trim();
+         System.out.print("\tEnter # of parallel parts: ");
+         int parts = Integer.parseInt(in.readLine().trim());
+         System.out.print("\tCompress with gzip (y/n): ");
+         boolean gzip = in.readLine().trim().equalsIgnoreCase("y");
+
+         String query = "SELECT O.orderNumber, O.customerID, P.storeID, P.productName, O.unitsOrdered, O.orderTime FROM Orders O JOIN Product P ON P.productID = O.productID";
+         String name = "orders";
+         if(!storeID.isEmpty()){
+            query += String.format(" WHERE P.storeID = '%d'", Integer.parseInt(storeID));
+            name += "-store" + storeID;
+         }
+
+         TableExporter exporter = new TableExporter(esql, new File(dir.isEmpty() ? "." : dir), parts, gzip);
+         long rowCount = exporter.export(name, query, "orderNumber");
+         System.out.println ("total row(s) exported: " + rowCount);
+      }catch(Exception e){
+      	System.err.println (e.getMessage());
+      }
+   }
+   public static void viewSalesReport(Retail esql) {
+      try{
+            String authorisedUser = "";
+            String storeID = "";
+            System.out.println('\n' + "OPTIONS");
+            System.out.println("-------");
+            System.out.println("1. Manager");
+            System.out.println("2. Admin");
+            System.out.println("3. Cancel");
+            switch (readChoice()){
+                  case 1: authorisedUser = checkManager(esql);
+                        if(authorisedUser == null){
+                                 System.out.print("ERROR: Not A Manager ID\n\n");
+                                 return;
+                        }
+                        if(!authorisedUser.equals(esql.userId)){
+                                 System.out.print("ERROR: Not Correct Manager ID\n\n");
+                                 return;
+                        }
+                        
+                        storeID = store_belongs_manager(esql);
+                        if(storeID == null){
+                                 System.out.print("ERROR: Invalid Store ID\n\n");
+                                 return;
+                        }; 
+                        break;
+                  case 2: authorisedUser = checkAdmin(esql);
+                        if(authorisedUser == null){
+                           System.out.print("ERROR: Not An Admin ID\n\n");
+                           return;
+                        }
+                        if(!authorisedUser.equals(esql.userId)){
+                           System.out.print("ERROR: Not Correct Admin ID\n\n");
+                           return;
+                        }
+                        System.out.print("\tEnter StoreID (blank for all stores): ");
+                        storeID = in.readLine().trim();
+                        break;
+                  case 3: return;
+                  default : System.out.println("Unrecognized choice!"); return;
+               }
+
+         System.out.print("\tEnter first day (YYYY-MM-DD): ");
+         String from = Date.valueOf(in.readLine().trim()).toString();
+         System.out.print("\tEnter last day (YYYY-MM-DD): ");
+         String to = Date.valueOf(in.readLine().trim()).toString();
+         System.out.print("\tPer hour or per day (h/d): ");
+         boolean hourly = in.readLine().trim().equalsIgnoreCase("h");
+
+         // read from the rollups and sketches, which are kept on the main database.
+         Integer sID = storeID.isEmpty() ? null : Integer.valueOf(storeID.trim());
+         if(sID != null){
+            int rowCount = esql.executeQueryAndPrintResult(SalesRollups.reportQuery(sID, from, to, hourly));
+            System.out.println ("total row(s): " + rowCount);
+            System.out.println();
+            rowCount = esql.executeQueryAndPrintResult(SalesRollups.productsQuery(sID, from, to));
+            System.out.println ("total product(s): " + rowCount);
+            System.out.println();
+         }
+         SalesSketch sketch = SalesSketch.load(esql, sID, from, to);
+         System.out.println("Distinct customers (approx.): " + sketch.distinctCustomers());
+         System.out.println("Top products by units (approx.):");
+         for(SpaceSaving.Entry e : sketch.topProducts(5)){
+            System.out.println("\t" + e.key + "\t" + e.count + (e.error > 0 ? "\t(over by at most " + e.error + ")" : ""));
+         }
+         System.out.println("Top customers by units (approx.):");
+         for(SpaceSaving.Entry e : sketch.topCustomers(5)){
+            System.out.println("\t" + e.key + "\t" + e.count + (e.error > 0 ? "\t(over by at most " + e.error + ")" : ""));
+         }
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+
 }//end Retail
 
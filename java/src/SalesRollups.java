@@ -0,0 +1,460 @@
+/*
+ * Incremental sales rollups
+ * =========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the hourly and daily sales rollups (SalesHourly and
+ * SalesDaily) up to date. Once the feed has started, a trigger on Orders
+ * queues every order in SalesRollupQueue, in the order's own transaction,
+ * whichever process placed it. A background thread periodically takes the
+ * queued orders and adds them to the rollups in the same transaction, so a
+ * popular product costs one rollup update per flush rather than one per
+ * order, and a crash or a failed flush leaves the orders queued. Distinct
+ * customers are exact: a customer is only counted when their row is new in
+ * the bucket's *Customers table.
+ *
+ * Orders placed before the feed started were never queued and are rolled
+ * up by the backfill, which runs one day of Orders per transaction over
+ * parallel connections and remembers the days it finished, so it can be
+ * run again after a failure. The feed records the last order placed
+ * before it; the backfill takes the orders up to it and skips any order in
+ * the queue, and the flush takes every queued order, so every order is
+ * counted once. Any number of processes may flush, and some process must:
+ * once the feed has started, every order is queued until a flush takes it.
+ * Set retail.rollups.interval in one application process, or run the main
+ * method of this class periodically.
+ *
+ * The same flush adds the orders to the per store and day sketches in
+ * SalesSketches, for approximate distinct customers and top products and
+ * customers over any stores and days.
+ *
+ */
+public class SalesRollups {
+   private final Retail esql;
+   // queued orders taken per transaction.
+   private final int batchSize;
+   private ScheduledExecutorService timer = null;
+   private Connection conn = null;
+
+   /**
+    * Creates a new feed
+    *
+    * @param esql the Retail instance used to open the side connection
+    * @param batchSize the queued orders rolled up per transaction
+    * @throws IllegalStateException on a sharded deployment, where the
+    *         orders are on the shards and not on the main database
+    */
+   public SalesRollups(Retail esql, int batchSize) {
+      if (esql.isSharded())
+         throw new IllegalStateException("Sales rollups are not supported on a sharded deployment");
+      this.esql = esql;
+      this.batchSize = Math.max(1, batchSize);
+   }//end SalesRollups
+
+   /**
+    * Creates a feed from the retail.rollups.interval and
+    * retail.rollups.batchSize system properties.
+    *
+    * @param esql the Retail instance used to open the side connection
+    * @return the feed, or null when retail.rollups.interval is not set
+    * @throws java.sql.SQLException when failed to record the start of the feed
+    */
+   public static SalesRollups fromProperties(Retail esql) throws SQLException {
+      int interval = Integer.getInteger("retail.rollups.interval", 0);
+      if (interval <= 0)
+         return null;
+      SalesRollups rollups = new SalesRollups(esql, Integer.getInteger("retail.rollups.batchSize", 10000));
+      rollups.start(interval);
+      return rollups;
+   }//end fromProperties
+
+   /**
+    * Starts the background thread, after recording when the feed started
+    * if no process did before.
+    *
+    * @param intervalSeconds the delay between two flushes
+    * @throws java.sql.SQLException when failed to record the start of the feed
+    */
+   public synchronized void start(int intervalSeconds) throws SQLException {
+      if (this.timer != null)
+         return;
+      if (this.conn == null)
+         this.conn = this.esql.openConnection();
+      startFeed(this.conn);
+      this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "sales-rollups");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      this.timer.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try{
+               flush();
+            }catch (SQLException e){
+               System.err.println("Sales rollup failed: " + e.getMessage());
+            }
+         }
+      }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Stops the background thread after a last flush and closes the side
+    * connection.
+    */
+   public void stop() {
+      ScheduledExecutorService running;
+      synchronized (this) {
+         running = this.timer;
+         this.timer = null;
+      }
+      if (running != null) {
+         running.shutdown();
+         try{
+            running.awaitTermination(10, TimeUnit.SECONDS);
+            flush();
+         }catch (Exception e){
+            System.err.println("Sales rollup failed: " + e.getMessage());
+         }
+      }
+      synchronized (this) {
+         try{
+            if (this.conn != null)
+               this.conn.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+         this.conn = null;
+      }
+   }//end stop
+
+   /*
+    * Records when the feed started and the last order placed before, if
+    * no process did before. Orders is locked against inserts meanwhile, so
+    * an order either committed before and is numbered up to queuedAfter,
+    * or is numbered after it and queued by the trigger.
+    **/
+   private static void startFeed(Connection c) throws SQLException {
+      c.setAutoCommit(false);
+      try{
+         Statement stmt = c.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT 1 FROM SalesRollupFeed");
+         if (!rs.next()) {
+            stmt.execute("LOCK TABLE Orders IN SHARE MODE");
+            stmt.executeUpdate("INSERT INTO SalesRollupFeed (feed, fedSince, queuedAfter) " +
+                               "SELECT 1, clock_timestamp(), COALESCE(max(orderNumber), 0) FROM Orders ON CONFLICT (feed) DO NOTHING");
+         }
+         stmt.close();
+         c.commit();
+      }catch (SQLException e){
+         c.rollback();
+         throw e;
+      }finally{
+         c.setAutoCommit(true);
+      }
+   }//end startFeed
+
+   /**
+    * Adds the queued orders to the rollups, batchSize orders per
+    * transaction, until the queue is empty.
+    *
+    * @return the number of orders rolled up
+    * @throws java.sql.SQLException when failed to update the rollups
+    */
+   public synchronized int flush() throws SQLException {
+      if (this.conn == null)
+         this.conn = this.esql.openConnection();
+      int total = 0;
+      for (int taken = this.batchSize; taken == this.batchSize; ) {
+         this.conn.setAutoCommit(false);
+         try{
+            Statement stmt = this.conn.createStatement();
+            // SKIP LOCKED leaves the orders another process is flushing to it.
+            ResultSet rs = stmt.executeQuery(String.format(
+               "WITH q AS (DELETE FROM SalesRollupQueue WHERE orderNumber IN " +
+               "           (SELECT orderNumber FROM SalesRollupQueue ORDER BY orderNumber LIMIT %d FOR UPDATE SKIP LOCKED) " +
+               "           RETURNING orderNumber, pricePerUnit) " +
+               "SELECT P.storeID, P.productName, date_trunc('hour', O.orderTime), O.customerID, O.unitsOrdered, q.pricePerUnit, " +
+               "       O.orderTime::date " +
+               "FROM q JOIN Orders O ON O.orderNumber = q.orderNumber JOIN Product P ON P.productID = O.productID", this.batchSize));
+            // summed per store, product, hour and customer, and sketched per store and day.
+            Map<String, Object[]> sales = new HashMap<String, Object[]>();
+            Map<String, SalesSketch> sketches = new TreeMap<String, SalesSketch>();
+            taken = 0;
+            while (rs.next()) {
+               ++taken;
+               int units = rs.getInt(5);
+               String key = rs.getInt(1) + "/" + rs.getString(2) + "/" + rs.getString(3) + "/" + rs.getInt(4);
+               Object[] sum = sales.get(key);
+               if (sum == null)
+                  sales.put(key, new Object[] { rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), units, units * rs.getDouble(6) });
+               else {
+                  sum[4] = (Integer) sum[4] + units;
+                  sum[5] = (Double) sum[5] + units * rs.getDouble(6);
+               }
+               String day = rs.getInt(1) + "/" + rs.getString(7);
+               SalesSketch sketch = sketches.get(day);
+               if (sketch == null) {
+                  sketch = new SalesSketch();
+                  sketches.put(day, sketch);
+               }
+               sketch.add(rs.getInt(4), rs.getInt(1), rs.getString(2), units);
+            }
+            if (!sales.isEmpty()) {
+               StringBuilder values = new StringBuilder();
+               for (Object[] v : sales.values()) {
+                  if (values.length() > 0)
+                     values.append(", ");
+                  values.append(String.format("(%d, '%s', timestamp '%s', %d, %d, %s::float)",
+                                              (Integer) v[0], ((String) v[1]).replace("'", "''"), v[2], (Integer) v[3], (Integer) v[4], v[5]));
+               }
+               stmt.executeUpdate(rollupStatement("VALUES " + values));
+            }
+            stmt.close();
+            // in key order, so concurrent flushes lock them in the same order.
+            for (Map.Entry<String, SalesSketch> e : sketches.entrySet()) {
+               String[] key = e.getKey().split("/");
+               SalesSketch.store(this.conn, Integer.parseInt(key[0]), key[1], e.getValue());
+            }
+            this.conn.commit();
+            total += taken;
+         }catch (SQLException e){
+            // the orders stay queued for the next flush.
+            this.conn.rollback();
+            throw e;
+         }finally{
+            this.conn.setAutoCommit(true);
+         }
+      }
+      return total;
+   }//end flush
+
+   /*
+    * Builds the statement adding a set of sales to the hourly and daily
+    * rollups. The source returns storeID, productName, hourly bucket,
+    * customerID, units and revenue, one row per store, product, bucket and
+    * customer. Rows are written in key order, so concurrent flushes lock
+    * them in the same order.
+    **/
+   static String rollupStatement(String source) {
+      return
+         "WITH o (storeID, productName, bucket, customerID, units, revenue) AS (" + source + "), " +
+         "hc AS (INSERT INTO SalesHourlyCustomers (storeID, bucket, productName, customerID) " +
+         "       SELECT storeID, bucket, productName, customerID FROM o ORDER BY 1, 2, 3, 4 " +
+         "       ON CONFLICT DO NOTHING RETURNING storeID, bucket, productName), " +
+         "dc AS (INSERT INTO SalesDailyCustomers (storeID, bucket, productName, customerID) " +
+         "       SELECT DISTINCT storeID, bucket::date, productName, customerID FROM o ORDER BY 1, 2, 3, 4 " +
+         "       ON CONFLICT DO NOTHING RETURNING storeID, bucket, productName), " +
+         "hs AS (SELECT storeID, bucket, productName, sum(units) AS units, sum(revenue) AS revenue FROM o GROUP BY 1, 2, 3), " +
+         "ds AS (SELECT storeID, bucket::date AS bucket, productName, sum(units) AS units, sum(revenue) AS revenue FROM o GROUP BY 1, 2, 3), " +
+         "h AS (INSERT INTO SalesHourly (storeID, bucket, productName, unitsSold, revenue, customers) " +
+         "      SELECT hs.storeID, hs.bucket, hs.productName, hs.units, hs.revenue, " +
+         "             (SELECT count(*) FROM hc WHERE hc.storeID = hs.storeID AND hc.bucket = hs.bucket AND hc.productName = hs.productName) " +
+         "      FROM hs ORDER BY 1, 2, 3 " +
+         "      ON CONFLICT (storeID, bucket, productName) DO UPDATE SET unitsSold = SalesHourly.unitsSold + EXCLUDED.unitsSold, " +
+         "         revenue = SalesHourly.revenue + EXCLUDED.revenue, customers = SalesHourly.customers + EXCLUDED.customers) " +
+         "INSERT INTO SalesDaily (storeID, bucket, productName, unitsSold, revenue, customers) " +
+         "SELECT ds.storeID, ds.bucket, ds.productName, ds.units, ds.revenue, " +
+         "       (SELECT count(*) FROM dc WHERE dc.storeID = ds.storeID AND dc.bucket = ds.bucket AND dc.productName = ds.productName) " +
+         "FROM ds ORDER BY 1, 2, 3 " +
+         "ON CONFLICT (storeID, bucket, productName) DO UPDATE SET unitsSold = SalesDaily.unitsSold + EXCLUDED.unitsSold, " +
+         "   revenue = SalesDaily.revenue + EXCLUDED.revenue, customers = SalesDaily.customers + EXCLUDED.customers";
+   }//end rollupStatement
+
+   /**
+    * Rolls up the orders placed before the feed started, one day per
+    * transaction, skipping the days a previous run finished and the
+    * orders in the queue.
+    *
+    * @param threads the number of days rolled up in parallel
+    * @return the number of days rolled up
+    * @throws java.sql.SQLException when failed to roll up a day
+    */
+   public int backfill(int threads) throws SQLException {
+      List<String> days = new ArrayList<String>();
+      Connection c = this.esql.openConnection();
+      try{
+         // without a feed yet, orders up to now are backfilled and later orders are queued.
+         startFeed(c);
+         Statement stmt = c.createStatement();
+         ResultSet rs = stmt.executeQuery(
+            "SELECT DISTINCT O.orderTime::date FROM Orders O, SalesRollupFeed F WHERE O.orderNumber <= F.queuedAfter " +
+            "EXCEPT SELECT day FROM SalesRollupBackfill ORDER BY 1");
+         while (rs.next())
+            days.add(rs.getString(1));
+         stmt.close();
+      }finally{
+         c.close();
+      }
+      if (days.isEmpty())
+         return 0;
+
+      List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+      for (final String day : days) {
+         chunks.add(new Callable<Void>() {
+            public Void call() throws Exception {
+               backfillDay(day);
+               return null;
+            }
+         });
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks.size())));
+      try{
+         for (Future<Void> f : pool.invokeAll(chunks))
+            f.get();
+         return chunks.size();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Backfill interrupted");
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException(cause);
+      }finally{
+         pool.shutdownNow();
+      }
+   }//end backfill
+
+   /*
+    * Rolls up and sketches the orders of one day placed before the feed
+    * started, and marks the day done, in one transaction over its own
+    * connection.
+    **/
+   private void backfillDay(String day) throws SQLException {
+      String unqueued = String.format(
+         "O.orderTime >= date '%s' AND O.orderTime < date '%s' + 1 AND O.orderNumber <= F.queuedAfter " +
+         "AND NOT EXISTS (SELECT 1 FROM SalesRollupQueue Q WHERE Q.orderNumber = O.orderNumber)", day, day);
+      String source = String.format(
+         "SELECT P.storeID, P.productName, date_trunc('hour', O.orderTime), O.customerID, sum(O.unitsOrdered), sum(O.unitsOrdered * P.pricePerUnit) " +
+         "FROM Orders O JOIN Product P ON P.productID = O.productID, SalesRollupFeed F " +
+         "WHERE %s GROUP BY 1, 2, 3, 4", unqueued);
+      Connection c = this.esql.openConnection();
+      try{
+         c.setAutoCommit(false);
+         Statement stmt = c.createStatement();
+         stmt.executeUpdate(rollupStatement(source));
+         Map<Integer, SalesSketch> sketches = new TreeMap<Integer, SalesSketch>();
+         ResultSet rs = stmt.executeQuery(
+            "SELECT P.storeID, O.customerID, P.productName, O.unitsOrdered FROM Orders O JOIN Product P ON P.productID = O.productID, SalesRollupFeed F " +
+            "WHERE " + unqueued);
+         while (rs.next()) {
+            SalesSketch sketch = sketches.get(rs.getInt(1));
+            if (sketch == null) {
+               sketch = new SalesSketch();
+               sketches.put(rs.getInt(1), sketch);
+            }
+            sketch.add(rs.getInt(2), rs.getInt(1), rs.getString(3), rs.getInt(4));
+         }
+         for (Map.Entry<Integer, SalesSketch> e : sketches.entrySet())
+            SalesSketch.store(c, e.getKey(), day, e.getValue());
+         stmt.executeUpdate(String.format("INSERT INTO SalesRollupBackfill (day, rolledUpOn) VALUES (date '%s', NOW())", day));
+         stmt.close();
+         c.commit();
+      }catch (SQLException e){
+         c.rollback();
+         throw e;
+      }finally{
+         c.close();
+      }
+   }//end backfillDay
+
+   /**
+    * Builds the sales report of a store over a time window: units, revenue
+    * and distinct customers per hour or per day, read from the rollups.
+    *
+    * @param storeID the store
+    * @param from the first day of the window, as yyyy-mm-dd
+    * @param to the last day of the window, as yyyy-mm-dd
+    * @param hourly true for one row per hour, false for one row per day
+    * @return the query
+    */
+   public static String reportQuery(int storeID, String from, String to, boolean hourly) {
+      String period = hourly ? "Hourly" : "Daily";
+      return String.format(
+         "SELECT R.bucket, sum(R.unitsSold) AS units, round(sum(R.revenue)::numeric, 2) AS revenue, " +
+         "       (SELECT count(DISTINCT C.customerID) FROM Sales%sCustomers C WHERE C.storeID = R.storeID AND C.bucket = R.bucket) AS customers " +
+         "FROM Sales%s R WHERE R.storeID = '%d' AND R.bucket >= date '%s' AND R.bucket < date '%s' + 1 " +
+         "GROUP BY R.storeID, R.bucket ORDER BY R.bucket",
+         period, period, storeID, from, to);
+   }//end reportQuery
+
+   /**
+    * Builds the query ranking the products of a store by revenue over a
+    * time window, read from the daily rollups.
+    *
+    * @param storeID the store
+    * @param from the first day of the window, as yyyy-mm-dd
+    * @param to the last day of the window, as yyyy-mm-dd
+    * @return the query
+    */
+   public static String productsQuery(int storeID, String from, String to) {
+      return String.format(
+         "SELECT R.productName, sum(R.unitsSold) AS units, round(sum(R.revenue)::numeric, 2) AS revenue, " +
+         "       (SELECT count(DISTINCT C.customerID) FROM SalesDailyCustomers C " +
+         "        WHERE C.storeID = R.storeID AND C.bucket >= date '%s' AND C.bucket < date '%s' + 1 AND C.productName = R.productName) AS customers " +
+         "FROM SalesDaily R WHERE R.storeID = '%d' AND R.bucket >= date '%s' AND R.bucket < date '%s' + 1 " +
+         "GROUP BY R.storeID, R.productName ORDER BY 3 DESC, 1",
+         from, to, storeID, from, to);
+   }//end productsQuery
+
+   /**
+    * Backfills the rollups from the orders placed before the feed started,
+    * then flushes the queue. Run periodically, it is the flushing process
+    * of a deployment that does not set retail.rollups.interval.
+    * rollup.threads sets the number of days rolled up in parallel.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Drollup.threads=N] [-Dretail.rollups.batchSize=N] " +
+            SalesRollups.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try{
+         esql = new Retail (args[0], args[1], args[2], "");
+         long start = System.nanoTime();
+         SalesRollups rollups = new SalesRollups(esql, Integer.getInteger("retail.rollups.batchSize", 10000));
+         int days = rollups.backfill(Integer.getInteger("rollup.threads", 4));
+         int orders = rollups.flush();
+         rollups.stop();
+         System.out.println(String.format("Rolled up %d day(s) and %d queued order(s) in %.1f s", days, orders, (System.nanoTime() - start) / 1e9));
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end SalesRollups
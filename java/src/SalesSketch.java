@@ -0,0 +1,195 @@
+/*
+ * Approximate sales summaries
+ * ===========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * This class summarizes the orders of a store over a period in a few
+ * kilobytes: a HyperLogLog of the customers and Space-Saving summaries of
+ * the products and customers by units ordered. Sketches of the same store
+ * on other days, or of other stores, merge into the sketch of the union,
+ * so distinct customers and top products over any set of stores and days
+ * are answered without reading Orders. Products are keyed by storeID and
+ * name, as storeID/productName, so the same name sold by two stores stays
+ * two products in a merged sketch.
+ *
+ * One sketch per store and day is kept in SalesSketches; the sales
+ * rollup feed adds to it as orders are placed.
+ *
+ */
+public class SalesSketch {
+   // version 1 keyed products by name alone.
+   private static final int VERSION = 2;
+
+   private final HyperLogLog customers;
+   private final SpaceSaving topProducts;
+   private final SpaceSaving topCustomers;
+
+   /**
+    * Creates an empty sketch.
+    */
+   public SalesSketch() {
+      this(new HyperLogLog(HyperLogLog.DEFAULT_PRECISION), new SpaceSaving(SpaceSaving.DEFAULT_CAPACITY),
+           new SpaceSaving(SpaceSaving.DEFAULT_CAPACITY));
+   }//end SalesSketch
+
+   private SalesSketch(HyperLogLog customers, SpaceSaving topProducts, SpaceSaving topCustomers) {
+      this.customers = customers;
+      this.topProducts = topProducts;
+      this.topCustomers = topCustomers;
+   }
+
+   /**
+    * Adds an order.
+    */
+   public void add(int customerID, int storeID, String productName, int units) {
+      this.customers.add(customerID);
+      this.topProducts.add(storeID + "/" + productName, units);
+      this.topCustomers.add(String.valueOf(customerID), units);
+   }//end add
+
+   /**
+    * Adds the orders summarized by another sketch to this one.
+    */
+   public void merge(SalesSketch other) {
+      this.customers.merge(other.customers);
+      this.topProducts.merge(other.topProducts);
+      this.topCustomers.merge(other.topCustomers);
+   }//end merge
+
+   /**
+    * Returns the estimated number of distinct customers.
+    */
+   public long distinctCustomers() {
+      return this.customers.estimate();
+   }
+
+   /**
+    * Returns the products with the most units ordered, most first.
+    */
+   public List<SpaceSaving.Entry> topProducts(int n) {
+      return this.topProducts.top(n);
+   }
+
+   /**
+    * Returns the customers with the most units ordered, most first.
+    */
+   public List<SpaceSaving.Entry> topCustomers(int n) {
+      return this.topCustomers.top(n);
+   }
+
+   /**
+    * Returns the stored form of the sketch.
+    */
+   public byte[] toBytes() {
+      try{
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeByte(VERSION);
+         this.customers.write(out);
+         this.topProducts.write(out);
+         this.topCustomers.write(out);
+         out.close();
+         return bytes.toByteArray();
+      }catch (IOException e){
+         throw new IllegalStateException(e);
+      }
+   }//end toBytes
+
+   /**
+    * Reads a sketch from its stored form.
+    *
+    * @param stored the stored form
+    * @param storeID the store the sketch was stored for, which keys the
+    *        products of a version 1 sketch
+    */
+   public static SalesSketch fromBytes(byte[] stored, int storeID) {
+      try{
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(stored));
+         int version = in.readUnsignedByte();
+         if (version != VERSION && version != 1)
+            throw new IllegalArgumentException("Unknown sales sketch version " + version);
+         HyperLogLog customers = HyperLogLog.read(in);
+         SpaceSaving products = SpaceSaving.read(in, version == 1 ? storeID + "/" : "");
+         return new SalesSketch(customers, products, SpaceSaving.read(in));
+      }catch (IOException e){
+         throw new IllegalArgumentException("Corrupt sales sketch", e);
+      }
+   }//end fromBytes
+
+   /**
+    * Adds a sketch to the stored sketch of a store and day, in the
+    * transaction of the connection.
+    *
+    * @param conn the connection to the main database
+    * @param storeID the store
+    * @param day the day, as yyyy-mm-dd
+    * @param sketch the orders to add
+    * @throws java.sql.SQLException when failed to store the sketch
+    */
+   public static void store(Connection conn, int storeID, String day, SalesSketch sketch) throws SQLException {
+      PreparedStatement insert = conn.prepareStatement(
+         "INSERT INTO SalesSketches (storeID, bucket, sketch) VALUES (?, ?::date, ?) ON CONFLICT (storeID, bucket) DO NOTHING");
+      insert.setInt(1, storeID);
+      insert.setString(2, day);
+      insert.setBytes(3, sketch.toBytes());
+      int inserted = insert.executeUpdate();
+      insert.close();
+      if (inserted > 0)
+         return;
+
+      PreparedStatement select = conn.prepareStatement("SELECT sketch FROM SalesSketches WHERE storeID = ? AND bucket = ?::date FOR UPDATE");
+      select.setInt(1, storeID);
+      select.setString(2, day);
+      ResultSet rs = select.executeQuery();
+      rs.next();
+      SalesSketch merged = fromBytes(rs.getBytes(1), storeID);
+      select.close();
+      merged.merge(sketch);
+      PreparedStatement update = conn.prepareStatement("UPDATE SalesSketches SET sketch = ? WHERE storeID = ? AND bucket = ?::date");
+      update.setBytes(1, merged.toBytes());
+      update.setInt(2, storeID);
+      update.setString(3, day);
+      update.executeUpdate();
+      update.close();
+   }//end store
+
+   /**
+    * Merges the stored sketches of a store, or of every store, over a
+    * range of days. They are read like the other queries of the session,
+    * on a replica during a read-only operation.
+    *
+    * @param esql the Retail instance to query
+    * @param storeID the store, or null for every store
+    * @param from the first day, as yyyy-mm-dd
+    * @param to the last day, as yyyy-mm-dd
+    * @return the merged sketch, empty when no orders were placed
+    * @throws java.sql.SQLException when failed to read the sketches
+    */
+   public static SalesSketch load(Retail esql, Integer storeID, String from, String to) throws SQLException {
+      String query = String.format("SELECT storeID, encode(sketch, 'hex') FROM SalesSketches WHERE bucket BETWEEN date '%s' AND date '%s'", from, to);
+      if (storeID != null)
+         query += String.format(" AND storeID = '%d'", storeID);
+      SalesSketch merged = new SalesSketch();
+      for (List<String> row : esql.executeQueryAndReturnResult(query))
+         merged.merge(fromBytes(HexFormat.of().parseHex(row.get(1)), Integer.parseInt(row.get(0))));
+      return merged;
+   }//end load
+
+}//end SalesSketch
@@ -0,0 +1,320 @@
+/*
+ * Store-sharded deployment
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class maps stores to shard databases. Product, Orders,
+ * ProductUpdates and ProductSupplyRequests rows live on the shard of their
+ * storeID; Users, Store and Warehouse are reference tables present on every
+ * shard.
+ *
+ * Stores are assigned by hash (storeID modulo the number of shards) or by
+ * ranges of storeID. Queries that span stores run on all shards in
+ * parallel and the sorted partial results are merged.
+ *
+ * The order, supply request and update numbers are drawn from sequences
+ * that step by the number of shards, each shard starting at a different
+ * offset, so numbers stay unique across shards.
+ *
+ */
+public class ShardRouter {
+   // serial columns of the store-scoped tables, numbered across shards.
+   private static final String[][] SERIALS = { { "Orders", "orderNumber" },
+                                               { "ProductSupplyRequests", "requestNumber" },
+                                               { "ProductUpdates", "updateNumber" } };
+
+   private final List<Connection> shards = new ArrayList<Connection>();
+   // inclusive upper storeID bound of every shard but the last, or null to hash.
+   private final int[] upperBounds;
+   private final ExecutorService pool;
+
+   /**
+    * Creates a new router and connects to every shard
+    *
+    * @param urls the JDBC URLs of the shards
+    * @param upperBounds the range bounds, or null to assign stores by hash
+    * @param user the user name used to login to the shards
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to connect to a shard
+    */
+   public ShardRouter(List<String> urls, int[] upperBounds, String user, String passwd) throws SQLException {
+      this.upperBounds = upperBounds;
+      for (String url : urls)
+         this.shards.add(DriverManager.getConnection(url, user, passwd));
+      for (int i = 0; i < this.shards.size(); ++i)
+         stripeSequences(this.shards.get(i), i + 1, this.shards.size());
+      this.pool = Executors.newFixedThreadPool(urls.size());
+   }//end ShardRouter
+
+   /*
+    * Makes the serial sequences of a shard hand out offset, offset + step,
+    * offset + 2 * step, ... past the numbers already used. Sequences that
+    * already step this way are left alone, so every process can run it.
+    **/
+   private static void stripeSequences(Connection shard, int offset, int step) throws SQLException {
+      shard.setAutoCommit(false);
+      try{
+         Statement stmt = shard.createStatement();
+         for (String[] serial : SERIALS) {
+            ResultSet rs = stmt.executeQuery(String.format("SELECT pg_get_serial_sequence('%s', '%s')", serial[0].toLowerCase(), serial[1].toLowerCase()));
+            rs.next();
+            String seq = rs.getString(1);
+            String state = String.format("SELECT increment_by, last_value, (SELECT max(%s) FROM %s) FROM pg_sequences " +
+                                         "WHERE schemaname || '.' || sequencename = '%s'", serial[1], serial[0], seq);
+            rs = stmt.executeQuery(state);
+            rs.next();
+            if (rs.getLong(1) == step && Math.floorMod(rs.getLong(2) - offset, step) == 0)
+               continue;
+            // keeps processes starting together from both moving it.
+            stmt.execute("LOCK TABLE " + serial[0] + " IN SHARE ROW EXCLUSIVE MODE");
+            rs = stmt.executeQuery(state);
+            rs.next();
+            if (rs.getLong(1) == step && Math.floorMod(rs.getLong(2) - offset, step) == 0)
+               continue;
+            long last = Math.max(rs.getLong(2), rs.getLong(3));
+            // the first number above last on this shard's stripe.
+            long next = last + 1 + Math.floorMod(offset - (last + 1), step);
+            stmt.execute(String.format("ALTER SEQUENCE %s INCREMENT BY %d MINVALUE 1", seq, step));
+            stmt.execute(String.format("SELECT setval('%s', %d, false)", seq, next));
+         }
+         stmt.close();
+         shard.commit();
+      }catch (SQLException e){
+         shard.rollback();
+         throw e;
+      }finally{
+         shard.setAutoCommit(true);
+      }
+   }//end stripeSequences
+
+   /**
+    * Creates a router from the retail.shards system property, a comma
+    * separated list of host:port/dbname targets. retail.shards.ranges
+    * optionally lists the inclusive upper storeID of each shard but the
+    * last; without it stores are hashed.
+    *
+    * @return the router, or null when no shard is configured
+    * @throws java.sql.SQLException when failed to connect to a shard
+    */
+   public static ShardRouter fromProperties(String user, String passwd) throws SQLException {
+      String targets = System.getProperty("retail.shards", "").trim();
+      if (targets.isEmpty())
+         return null;
+      List<String> urls = new ArrayList<String>();
+      for (String target : targets.split(","))
+         if (!target.trim().isEmpty())
+            urls.add("jdbc:postgresql://" + target.trim() + Retail.JDBC_OPTIONS);
+
+      int[] bounds = null;
+      String ranges = System.getProperty("retail.shards.ranges", "").trim();
+      if (!ranges.isEmpty()) {
+         String[] parts = ranges.split(",");
+         if (parts.length != urls.size() - 1)
+            throw new SQLException("retail.shards.ranges needs one bound less than there are shards");
+         bounds = new int[parts.length];
+         for (int i = 0; i < parts.length; ++i)
+            bounds[i] = Integer.parseInt(parts[i].trim());
+      }
+      return new ShardRouter(urls, bounds, user, passwd);
+   }//end fromProperties
+
+   /**
+    * Returns the index of the shard holding a store.
+    */
+   public int shardOf(int storeID) {
+      if (this.upperBounds == null)
+         return Math.abs(storeID % this.shards.size());
+      for (int i = 0; i < this.upperBounds.length; ++i)
+         if (storeID <= this.upperBounds[i])
+            return i;
+      return this.upperBounds.length;
+   }//end shardOf
+
+   /**
+    * Returns the connection to the shard holding a store.
+    */
+   public Connection forStore(int storeID) {
+      return this.shards.get(shardOf(storeID));
+   }
+
+   /**
+    * Returns the connections to all shards.
+    */
+   public List<Connection> all() {
+      return this.shards;
+   }
+
+   /**
+    * Runs a query on every shard in parallel and merges the results. Each
+    * shard's result must already be sorted on the sort columns; the query
+    * should carry the same ORDER BY and LIMIT so each shard returns at most
+    * limit rows. Sort columns are compared by their type; text columns
+    * must be sorted COLLATE "C", the one collation the merge reproduces.
+    *
+    * @param query the input query string
+    * @param sortColumns the 0-based columns the results are sorted on, in order
+    * @param descending whether the results are sorted in descending order
+    * @param limit the maximum number of rows returned, 0 for all
+    * @param header filled with the column names
+    * @return the merged rows
+    * @throws java.sql.SQLException when failed to execute the query on a shard
+    */
+   public synchronized List<List<String>> scatterGather(final String query, final int[] sortColumns, final boolean descending,
+                                                         int limit, List<String> header) throws SQLException {
+      List<Callable<List<List<String>>>> tasks = new ArrayList<Callable<List<List<String>>>>();
+      final List<List<String>> headers = new ArrayList<List<String>>();
+      final int[] types = new int[sortColumns.length];
+      for (final Connection shard : this.shards) {
+         tasks.add(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               Statement stmt = shard.createStatement();
+               ResultSet rs = stmt.executeQuery(query);
+               ResultSetMetaData rsmd = rs.getMetaData();
+               int numCol = rsmd.getColumnCount();
+               List<String> names = new ArrayList<String>();
+               for (int i = 1; i <= numCol; ++i)
+                  names.add(rsmd.getColumnName(i));
+               synchronized (headers) {
+                  headers.add(names);
+                  for (int i = 0; i < sortColumns.length; ++i)
+                     types[i] = rsmd.getColumnType(sortColumns[i] + 1);
+               }
+               List<List<String>> rows = new ArrayList<List<String>>();
+               while (rs.next()) {
+                  List<String> record = new ArrayList<String>();
+                  for (int i = 1; i <= numCol; ++i)
+                     record.add(rs.getString(i));
+                  rows.add(record);
+               }
+               stmt.close();
+               return rows;
+            }
+         });
+      }
+
+      final List<List<List<String>>> parts = new ArrayList<List<List<String>>>();
+      try{
+         for (Future<List<List<String>>> f : this.pool.invokeAll(tasks))
+            parts.add(f.get());
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Query interrupted");
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().getMessage());
+      }
+      if (header != null && !headers.isEmpty())
+         header.addAll(headers.get(0));
+
+      // k-way merge of the sorted parts; cursor = { part, row }.
+      final Comparator<List<String>> rowOrder = new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            for (int i = 0; i < sortColumns.length; ++i) {
+               int c = compareValues(types[i], a.get(sortColumns[i]), b.get(sortColumns[i]));
+               if (c != 0)
+                  return descending ? -c : c;
+            }
+            return 0;
+         }
+      };
+      PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, parts.size()), new Comparator<int[]>() {
+         public int compare(int[] a, int[] b) {
+            int c = rowOrder.compare(parts.get(a[0]).get(a[1]), parts.get(b[0]).get(b[1]));
+            return c != 0 ? c : Integer.compare(a[0], b[0]);
+         }
+      });
+      for (int i = 0; i < parts.size(); ++i)
+         if (!parts.get(i).isEmpty())
+            heads.add(new int[] { i, 0 });
+
+      List<List<String>> merged = new ArrayList<List<String>>();
+      while (!heads.isEmpty() && (limit <= 0 || merged.size() < limit)) {
+         int[] head = heads.poll();
+         List<List<String>> part = parts.get(head[0]);
+         merged.add(part.get(head[1]));
+         if (head[1] + 1 < part.size())
+            heads.add(new int[] { head[0], head[1] + 1 });
+      }
+      return merged;
+   }//end scatterGather
+
+   /**
+    * Closes the shard connections.
+    */
+   public void close() {
+      this.pool.shutdownNow();
+      for (Connection shard : this.shards) {
+         try{
+            shard.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+   }//end close
+
+   /*
+    * Compares two values of a column the way PostgreSQL sorts them: numbers
+    * and dates by value, text by code point as with COLLATE "C", and nulls
+    * after everything else.
+    **/
+   private static int compareValues(int type, String a, String b) {
+      if (a == null || b == null)
+         return a == null ? (b == null ? 0 : 1) : -1;
+      switch (type) {
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+         return new BigDecimal(a).compareTo(new BigDecimal(b));
+      case Types.REAL:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+         return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+      case Types.DATE:
+         return Date.valueOf(a).compareTo(Date.valueOf(b));
+      case Types.TIMESTAMP:
+         return Timestamp.valueOf(a).compareTo(Timestamp.valueOf(b));
+      default:
+         // code point order is the byte order of UTF-8, which "C" sorts by.
+         int i = 0;
+         int j = 0;
+         while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb)
+               return Integer.compare(ca, cb);
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+         }
+         return Integer.compare(a.length() - i, b.length() - j);
+      }
+   }//end compareValues
+
+}//end ShardRouter
@@ -0,0 +1,282 @@
+/*
+ * Slow-query log with plan capture
+ * ================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class logs the SQL statements that take longer than a threshold.
+ * Each entry records the menu operation, the statement shape with its
+ * literals replaced by '?', the literals themselves, the number of rows
+ * and the elapsed time. The first time a query shape is slow, its plan is
+ * captured with EXPLAIN (ANALYZE, BUFFERS) in the background, on a side
+ * connection to the node the statement ran on: the primary, a replica or
+ * a shard. Only single SELECT statements without a locking clause are
+ * explained; statements that ran on every shard are not.
+ *
+ * The log rotates by size. On close a summary of the slowest shapes per
+ * operation is appended.
+ *
+ */
+public class SlowQueryLog {
+   // a row locking clause, which ANALYZE would take again.
+   private static final Pattern LOCKING = Pattern.compile("\\bfor\\s+(no\\s+key\\s+)?(update|share|key\\s+share)\\b");
+   private static final Pattern LITERAL = Pattern.compile("'(?:[^']|'')*'|(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+
+   private final Retail esql;
+   private final long thresholdNanos;
+   private final File file;
+   private final long maxBytes;
+   private final int maxFiles;
+   private Writer writer = null;
+   private long written = 0;
+   // per operation, per statement shape: { count, total nanos, max nanos }.
+   private final Map<String, Map<String, long[]>> stats = new HashMap<String, Map<String, long[]>>();
+   private final Set<String> explained = new HashSet<String>();
+   private final ExecutorService explainer;
+   // side connections of the plan captures, by the JDBC URL of their node.
+   private final Map<String, Connection> explainConnections = new ConcurrentHashMap<String, Connection>();
+
+   /**
+    * Creates a new log
+    *
+    * @param esql the Retail instance used to open the side connection
+    * @param thresholdMillis statements at least this slow are logged
+    * @param file the log file
+    * @param maxBytes the size at which the log file is rotated
+    * @param maxFiles the number of rotated files kept
+    */
+   public SlowQueryLog(Retail esql, long thresholdMillis, File file, long maxBytes, int maxFiles) {
+      this.esql = esql;
+      this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+      this.file = file;
+      this.maxBytes = maxBytes;
+      this.maxFiles = Math.max(1, maxFiles);
+      this.explainer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "slow-query-explain");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end SlowQueryLog
+
+   /**
+    * Creates a log from the retail.slowQuery.* system properties.
+    *
+    * @return the log, or null when retail.slowQuery.millis is not set
+    */
+   public static SlowQueryLog fromProperties(Retail esql) {
+      String millis = System.getProperty("retail.slowQuery.millis");
+      if (millis == null)
+         return null;
+      return new SlowQueryLog(esql, Long.parseLong(millis.trim()),
+                              new File(System.getProperty("retail.slowQuery.log", "slow_queries.log")),
+                              Long.getLong("retail.slowQuery.maxBytes", 10L * 1024 * 1024),
+                              Integer.getInteger("retail.slowQuery.files", 5));
+   }//end fromProperties
+
+   /**
+    * Records a finished statement, logging it when it was slow.
+    *
+    * @param operation the menu operation that issued the statement
+    * @param sql the statement
+    * @param rows the number of rows returned or changed
+    * @param elapsedNanos the time taken, including fetching the rows
+    * @param node the connection the statement ran on, null when it ran on
+    *        more than one node
+    */
+   public void record(String operation, String sql, int rows, long elapsedNanos, Connection node) {
+      if (elapsedNanos < this.thresholdNanos)
+         return;
+      List<String> params = new ArrayList<String>();
+      String shape = normalize(sql, params);
+      boolean explain;
+      synchronized (this) {
+         Map<String, long[]> shapes = this.stats.get(operation);
+         if (shapes == null) {
+            shapes = new HashMap<String, long[]>();
+            this.stats.put(operation, shapes);
+         }
+         long[] s = shapes.get(shape);
+         if (s == null) {
+            s = new long[3];
+            shapes.put(shape, s);
+         }
+         ++s[0];
+         s[1] += elapsedNanos;
+         s[2] = Math.max(s[2], elapsedNanos);
+
+         write(String.format("%s\t%s\t%.3f ms\t%d row(s)\t%s\t%s%n",
+                             new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()), operation,
+                             elapsedNanos / 1e6, rows, shape, params));
+         // ANALYZE runs the statement again, so only single reads that lock nothing are explained.
+         String head = sql.trim().toLowerCase();
+         explain = node != null && head.startsWith("select") && !LOCKING.matcher(head).find() && head.indexOf(';') < 0
+                   && this.explained.add(shape);
+      }
+      if (explain) {
+         try{
+            explainLater(operation, shape, sql, node.getMetaData().getURL());
+         }catch (SQLException e){
+            // the node is unknown, the plan is not captured.
+         }
+      }
+   }//end record
+
+   /**
+    * Returns the slowest statement shapes of every operation, by total time.
+    *
+    * @param topN the number of shapes listed per operation
+    * @return the summary text
+    */
+   public synchronized String summary(int topN) {
+      StringBuilder sb = new StringBuilder("Slow queries by operation\n");
+      List<String> operations = new ArrayList<String>(this.stats.keySet());
+      Collections.sort(operations);
+      for (String operation : operations) {
+         final Map<String, long[]> shapes = this.stats.get(operation);
+         List<String> order = new ArrayList<String>(shapes.keySet());
+         Collections.sort(order, new Comparator<String>() {
+            public int compare(String a, String b) {
+               return Long.compare(shapes.get(b)[1], shapes.get(a)[1]);
+            }
+         });
+         sb.append(operation).append('\n');
+         for (String shape : order.subList(0, Math.min(topN, order.size()))) {
+            long[] s = shapes.get(shape);
+            sb.append(String.format("  %5d x  total %10.3f ms  max %10.3f ms  %s%n", s[0], s[1] / 1e6, s[2] / 1e6, shape));
+         }
+      }
+      return sb.toString();
+   }//end summary
+
+   /**
+    * Waits for pending plan captures, appends the summary and closes the log.
+    */
+   public void close() {
+      this.explainer.shutdown();
+      try{
+         this.explainer.awaitTermination(30, TimeUnit.SECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+         if (!this.stats.isEmpty())
+            write(summary(Integer.getInteger("retail.slowQuery.top", 5)));
+         try{
+            if (this.writer != null)
+               this.writer.close();
+            for (Connection conn : this.explainConnections.values())
+               conn.close();
+         }catch (Exception e){
+            // ignored.
+         }
+         this.explainConnections.clear();
+         this.writer = null;
+      }
+   }//end close
+
+   /**
+    * Replaces the string and number literals of a statement with '?'.
+    *
+    * @param sql the statement
+    * @param params filled with the literals, in order
+    * @return the statement shape
+    */
+   public static String normalize(String sql, List<String> params) {
+      Matcher m = LITERAL.matcher(sql);
+      StringBuffer sb = new StringBuffer();
+      while (m.find()) {
+         if (params != null)
+            params.add(m.group());
+         m.appendReplacement(sb, "?");
+      }
+      m.appendTail(sb);
+      return sb.toString().replaceAll("\\s+", " ").trim();
+   }//end normalize
+
+   private void explainLater(final String operation, final String shape, final String sql, final String url) {
+      this.explainer.execute(new Runnable() {
+         public void run() {
+            StringBuilder plan = new StringBuilder();
+            plan.append("Plan of ").append(operation).append(" on ").append(url).append(": ").append(shape).append('\n');
+            try{
+               Connection conn = explainConnections.get(url);
+               if (conn == null) {
+                  conn = esql.openConnection(url);
+                  explainConnections.put(url, conn);
+               }
+               Statement stmt = conn.createStatement();
+               ResultSet rs = stmt.executeQuery("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+               while (rs.next())
+                  plan.append("  ").append(rs.getString(1)).append('\n');
+               stmt.close();
+            }catch (SQLException e){
+               plan.append("  unable to explain: ").append(e.getMessage()).append('\n');
+            }
+            synchronized (SlowQueryLog.this) {
+               write(plan.toString());
+            }
+         }
+      });
+   }//end explainLater
+
+   // appends to the log file, rotating it first when it is full.
+   private void write(String text) {
+      try{
+         if (this.writer != null && this.written >= this.maxBytes) {
+            this.writer.close();
+            this.writer = null;
+            new File(this.file.getPath() + "." + this.maxFiles).delete();
+            for (int i = this.maxFiles - 1; i >= 1; --i) {
+               File older = new File(this.file.getPath() + "." + i);
+               if (older.exists())
+                  older.renameTo(new File(this.file.getPath() + "." + (i + 1)));
+            }
+            this.file.renameTo(new File(this.file.getPath() + ".1"));
+         }
+         if (this.writer == null) {
+            this.writer = new OutputStreamWriter(new FileOutputStream(this.file, true), StandardCharsets.UTF_8);
+            this.written = this.file.length();
+         }
+         this.writer.write(text);
+         this.writer.flush();
+         this.written += text.length();
+      }catch (IOException e){
+         System.err.println("Unable to write slow query log: " + e.getMessage());
+      }
+   }//end write
+
+}//end SlowQueryLog
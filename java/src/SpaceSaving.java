@@ -0,0 +1,175 @@
+/*
+ * Space-Saving heavy hitters
+ * ==========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class finds the most frequent keys of a weighted stream with a
+ * fixed number of counters (the Space-Saving algorithm). A new key takes
+ * over the counter of the least frequent one and inherits its count as
+ * error, so a counter never underestimates and overestimates by at most
+ * its error. Any key with more than total / capacity of the weight is
+ * guaranteed to be kept.
+ *
+ * Two summaries merge by adding their counters; a key missing from a full
+ * summary is counted at that summary's smallest count, which bounds what
+ * it may have had there.
+ *
+ */
+public class SpaceSaving {
+   public static final int DEFAULT_CAPACITY = 32;
+
+   private final int capacity;
+   // key -> { count, error }
+   private final Map<String, long[]> counters = new HashMap<String, long[]>();
+
+   /**
+    * A key with its estimated count and the most the count may be over.
+    */
+   public static class Entry {
+      public final String key;
+      public final long count;
+      public final long error;
+
+      Entry(String key, long count, long error) {
+         this.key = key;
+         this.count = count;
+         this.error = error;
+      }
+   }
+
+   /**
+    * Creates an empty summary
+    *
+    * @param capacity the number of counters
+    */
+   public SpaceSaving(int capacity) {
+      this.capacity = capacity;
+   }//end SpaceSaving
+
+   /**
+    * Adds weight to a key.
+    */
+   public void add(String key, long weight) {
+      long[] c = this.counters.get(key);
+      if (c != null) {
+         c[0] += weight;
+         return;
+      }
+      if (this.counters.size() < this.capacity) {
+         this.counters.put(key, new long[] { weight, 0 });
+         return;
+      }
+      String smallest = smallest();
+      long[] min = this.counters.remove(smallest);
+      this.counters.put(key, new long[] { min[0] + weight, min[0] });
+   }//end add
+
+   /**
+    * Adds the counters of another summary to this one.
+    */
+   public void merge(SpaceSaving other) {
+      long mine = this.counters.size() < this.capacity ? 0 : this.counters.get(smallest())[0];
+      long theirs = other.counters.size() < other.capacity ? 0 : other.counters.get(other.smallest())[0];
+      Set<String> keys = new HashSet<String>(this.counters.keySet());
+      keys.addAll(other.counters.keySet());
+      List<Entry> merged = new ArrayList<Entry>(keys.size());
+      for (String key : keys) {
+         long[] a = this.counters.get(key);
+         long[] b = other.counters.get(key);
+         long count = (a != null ? a[0] : mine) + (b != null ? b[0] : theirs);
+         long error = (a != null ? a[1] : mine) + (b != null ? b[1] : theirs);
+         merged.add(new Entry(key, count, error));
+      }
+      sort(merged);
+      this.counters.clear();
+      for (Entry e : merged.subList(0, Math.min(this.capacity, merged.size())))
+         this.counters.put(e.key, new long[] { e.count, e.error });
+   }//end merge
+
+   /**
+    * Returns the keys with the largest counts, largest first.
+    *
+    * @param n the number of keys
+    */
+   public List<Entry> top(int n) {
+      List<Entry> entries = new ArrayList<Entry>(this.counters.size());
+      for (Map.Entry<String, long[]> e : this.counters.entrySet())
+         entries.add(new Entry(e.getKey(), e.getValue()[0], e.getValue()[1]));
+      sort(entries);
+      return entries.subList(0, Math.min(n, entries.size()));
+   }//end top
+
+   /**
+    * Writes the summary.
+    */
+   public void write(DataOutputStream out) throws IOException {
+      out.writeShort(this.capacity);
+      out.writeShort(this.counters.size());
+      for (Map.Entry<String, long[]> e : this.counters.entrySet()) {
+         out.writeUTF(e.getKey());
+         out.writeLong(e.getValue()[0]);
+         out.writeLong(e.getValue()[1]);
+      }
+   }//end write
+
+   /**
+    * Reads a summary written by write.
+    */
+   public static SpaceSaving read(DataInputStream in) throws IOException {
+      return read(in, "");
+   }
+
+   /**
+    * Reads a summary written by write, with a prefix added to every key.
+    */
+   public static SpaceSaving read(DataInputStream in, String keyPrefix) throws IOException {
+      SpaceSaving s = new SpaceSaving(in.readUnsignedShort());
+      int size = in.readUnsignedShort();
+      for (int i = 0; i < size; ++i) {
+         String key = keyPrefix + in.readUTF();
+         s.counters.put(key, new long[] { in.readLong(), in.readLong() });
+      }
+      return s;
+   }//end read
+
+   private String smallest() {
+      String key = null;
+      long count = Long.MAX_VALUE;
+      for (Map.Entry<String, long[]> e : this.counters.entrySet()) {
+         if (e.getValue()[0] < count) {
+            count = e.getValue()[0];
+            key = e.getKey();
+         }
+      }
+      return key;
+   }
+
+   // largest count first, then by key so equal counts come out the same way.
+   private static void sort(List<Entry> entries) {
+      Collections.sort(entries, new Comparator<Entry>() {
+         public int compare(Entry a, Entry b) {
+            if (a.count != b.count)
+               return a.count > b.count ? -1 : 1;
+            return a.key.compareTo(b.key);
+         }
+      });
+   }
+
+}//end SpaceSaving
@@ -0,0 +1,272 @@
+/*
+ * Striped stock reservation
+ * =========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class takes the units of an order from the stock of a product.
+ * Every order of a product normally locks and updates its Product row, so
+ * orders of a popular product wait for each other. When an order finds the
+ * row locked by another one, the product is striped: its units are handed
+ * out in chunks to slot rows in ProductStockSlots, and each order takes its
+ * units from one randomly chosen slot, so concurrent orders mostly lock
+ * different rows. A slot that runs dry is refilled from the Product row,
+ * and when that is empty too all slots are emptied back into it.
+ *
+ * Product.numberOfUnits then holds the units not handed to a slot; the
+ * ProductStock view adds the slots back and is what stock is read from. A
+ * product nobody ordered for a while has its slots folded back into the
+ * Product row. Striping is decided per process, the slot rows are shared.
+ *
+ */
+public class StockLedger {
+   // SQLSTATE of a NOWAIT lock that is held by another transaction.
+   public static final String LOCK_NOT_AVAILABLE = "55P03";
+
+   private final int stripes;
+   private final int chunk;
+   private final long idleNanos;
+   // products striped by this process, keyed by storeID and product name.
+   private final Map<String, Striped> striped = new ConcurrentHashMap<String, Striped>();
+   private long nextRelease = System.nanoTime();
+
+   // a striped product.
+   private static class Striped {
+      final int storeID;
+      final int productID;
+      volatile long lastUsed;
+
+      Striped(int storeID, int productID, long lastUsed) {
+         this.storeID = storeID;
+         this.productID = productID;
+         this.lastUsed = lastUsed;
+      }
+   }
+
+   /**
+    * Creates a new ledger
+    *
+    * @param stripes the number of slots of a striped product, 0 to never stripe
+    * @param chunk the number of units a slot is refilled with
+    * @param idleSeconds how long a product goes without orders before it is folded back
+    */
+   public StockLedger(int stripes, int chunk, int idleSeconds) {
+      this.stripes = stripes;
+      this.chunk = chunk;
+      this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+   }//end StockLedger
+
+   /**
+    * Creates a ledger from the retail.ledger.* system properties. Products
+    * are only striped when retail.ledger.stripes is set.
+    */
+   public static StockLedger fromProperties() {
+      return new StockLedger(Integer.getInteger("retail.ledger.stripes", 0),
+                             Integer.getInteger("retail.ledger.chunk", 100),
+                             Integer.getInteger("retail.ledger.idleSeconds", 30));
+   }//end fromProperties
+
+   /**
+    * Takes the units of an order from the stock of a product. It must be
+    * the first statement of the order transaction: when the product turns
+    * out to be hot the transaction is rolled back and started again.
+    *
+    * @param esql the Retail instance, in a transaction on the store's shard
+    * @param storeID the store of the product
+    * @param productName the product
+    * @param units the number of units ordered
+    * @return the productID and the stock left, negative when there were not
+    *         enough units; null if the product does not exist
+    * @throws java.sql.SQLException when failed to update the stock
+    */
+   public int[] reserve(Retail esql, int storeID, String productName, int units) throws SQLException {
+      String key = storeID + "/" + productName;
+      Striped s = this.striped.get(key);
+      if (s != null) {
+         s.lastUsed = System.nanoTime();
+         return new int[] { s.productID, take(esql, s.productID, units) };
+      }
+
+      // locks the product row, so concurrent orders cannot both take the last units.
+      List<List<String>> res;
+      try{
+         res = esql.executeQueryAndReturnResult(String.format(
+            "SELECT numberOfUnits, productID, (SELECT COALESCE(sum(S.units), 0) FROM ProductStockSlots S WHERE S.productID = P.productID) " +
+            "FROM Product P WHERE storeID = '%d' AND productName = '%s' FOR NO KEY UPDATE%s",
+            storeID, productName, this.stripes > 0 ? " NOWAIT" : ""));
+      }catch (SQLException e){
+         if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState()))
+            throw e;
+         // another order holds the row.
+         esql.rollbackTransaction();
+         res = esql.executeQueryAndReturnResult(String.format(
+            "SELECT productID FROM Product WHERE storeID = '%d' AND productName = '%s'", storeID, productName));
+         esql.beginTransaction();
+         if (res.isEmpty())
+            return null;
+         s = new Striped(storeID, Integer.parseInt(res.get(0).get(0)), System.nanoTime());
+         this.striped.put(key, s);
+         return new int[] { s.productID, take(esql, s.productID, units) };
+      }
+      if (res.isEmpty())
+         return null;
+      int pool = Integer.parseInt(res.get(0).get(0));
+      int productID = Integer.parseInt(res.get(0).get(1));
+      int slotted = Integer.parseInt(res.get(0).get(2));
+      if (pool < units && slotted > 0) {
+         pool += reclaim(esql, productID);
+         slotted = 0;
+      }
+      if (pool < units)
+         return new int[] { productID, pool + slotted - units };
+      esql.executeUpdate(String.format("UPDATE Product SET numberOfUnits = '%d' WHERE productID = '%d'", pool - units, productID));
+      return new int[] { productID, pool + slotted - units };
+   }//end reserve
+
+   /*
+    * Takes units from a random slot of a striped product, refilling the slot
+    * from the product row when it is dry.
+    * @return the stock left, negative when there were not enough units
+    **/
+   private int take(Retail esql, int productID, int units) throws SQLException {
+      int slot = ThreadLocalRandom.current().nextInt(this.stripes);
+      esql.executeUpdate("SAVEPOINT stock_slot");
+      List<List<String>> res = esql.executeQueryAndReturnResult(String.format(
+         "UPDATE ProductStockSlots SET units = units - '%d' WHERE productID = '%d' AND slot = '%d' AND units >= '%d' " +
+         "RETURNING (SELECT numberOfUnits FROM ProductStock WHERE productID = '%d') - '%d'",
+         units, productID, slot, units, productID, units));
+      if (!res.isEmpty())
+         return Math.max(0, Integer.parseInt(res.get(0).get(0)));
+
+      // the slot ran dry. An update that waited for the slot keeps it locked
+      // even when it then finds it dry; rolling back to the savepoint lets it
+      // go, so the product row is locked before any slot, like every other writer.
+      esql.executeUpdate("ROLLBACK TO SAVEPOINT stock_slot");
+      res = esql.executeQueryAndReturnResult(String.format(
+         "SELECT numberOfUnits FROM Product WHERE productID = '%d' FOR NO KEY UPDATE", productID));
+      if (res.isEmpty())
+         return -units;
+      int pool = Integer.parseInt(res.get(0).get(0));
+      if (pool < units)
+         pool += reclaim(esql, productID);
+      if (pool < units)
+         return pool - units;
+      int refill = Math.min(pool, Math.max(this.chunk, units));
+      esql.executeUpdate(String.format("UPDATE Product SET numberOfUnits = '%d' WHERE productID = '%d'", pool - refill, productID));
+      if (refill > units)
+         esql.executeUpdate(String.format(
+            "INSERT INTO ProductStockSlots (productID, slot, units) VALUES ('%d', '%d', '%d') " +
+            "ON CONFLICT (productID, slot) DO UPDATE SET units = ProductStockSlots.units + EXCLUDED.units",
+            productID, slot, refill - units));
+      return stock(esql, productID);
+   }//end take
+
+   /*
+    * Removes the slots of a product. The caller holds the product row and
+    * adds the returned units back to it.
+    * @return the units the slots held
+    **/
+   private static int reclaim(Retail esql, int productID) throws SQLException {
+      List<List<String>> res = esql.executeQueryAndReturnResult(String.format(
+         "WITH S AS (DELETE FROM ProductStockSlots WHERE productID = '%d' RETURNING units) SELECT COALESCE(sum(units), 0) FROM S", productID));
+      return Integer.parseInt(res.get(0).get(0));
+   }//end reclaim
+
+   // stock of a product, slots included.
+   private static int stock(Retail esql, int productID) throws SQLException {
+      List<List<String>> res = esql.executeQueryAndReturnResult(String.format(
+         "SELECT numberOfUnits FROM ProductStock WHERE productID = '%d'", productID));
+      return res.isEmpty() ? 0 : Integer.parseInt(res.get(0).get(0));
+   }
+
+   /**
+    * Sets the stock of a product to an absolute number of units, dropping
+    * its slots. Runs in its own transaction.
+    *
+    * @param esql the Retail instance, scoped to the store's shard
+    * @param storeID the store of the product
+    * @param productName the product
+    * @param units the new number of units
+    * @param pricePerUnit the new price per unit
+    * @throws java.sql.SQLException when failed to update the product
+    */
+   public static void setStock(Retail esql, int storeID, String productName, int units, int pricePerUnit) throws SQLException {
+      esql.beginTransaction();
+      try{
+         esql.executeUpdate(String.format(
+            "UPDATE Product SET numberOfUnits = '%d', pricePerUnit = '%d' WHERE productName = '%s' AND storeID = '%d'",
+            units, pricePerUnit, productName, storeID));
+         esql.executeUpdate(String.format(
+            "DELETE FROM ProductStockSlots WHERE productID = (SELECT productID FROM Product WHERE productName = '%s' AND storeID = '%d')",
+            productName, storeID));
+         esql.commitTransaction();
+      }catch (SQLException e){
+         esql.rollbackTransaction();
+         throw e;
+      }
+   }//end setStock
+
+   /**
+    * Folds the slots of the products this process striped and nobody
+    * ordered for a while back into their Product rows. Checks at most
+    * once per idle period; leaves the instance without a store scope.
+    *
+    * @param esql the Retail instance, outside of a transaction
+    */
+   public void releaseIdle(Retail esql) {
+      long now = System.nanoTime();
+      if (this.striped.isEmpty() || now - this.nextRelease < 0)
+         return;
+      this.nextRelease = now + this.idleNanos;
+      release(esql, now - this.idleNanos);
+   }//end releaseIdle
+
+   /**
+    * Folds the slots of every product this process striped back into their
+    * Product rows, before the process exits.
+    *
+    * @param esql the Retail instance, outside of a transaction
+    */
+   public void releaseAll(Retail esql) {
+      release(esql, System.nanoTime());
+   }//end releaseAll
+
+   private void release(Retail esql, long usedBefore) {
+      for (Map.Entry<String, Striped> e : new ArrayList<Map.Entry<String, Striped>>(this.striped.entrySet())) {
+         Striped s = e.getValue();
+         if (s.lastUsed - usedBefore > 0)
+            continue;
+         esql.setStore(s.storeID);
+         try{
+            esql.beginTransaction();
+            List<List<String>> res = esql.executeQueryAndReturnResult(String.format(
+               "SELECT numberOfUnits FROM Product WHERE productID = '%d' FOR NO KEY UPDATE", s.productID));
+            if (!res.isEmpty()) {
+               int units = reclaim(esql, s.productID);
+               if (units > 0)
+                  esql.executeUpdate(String.format(
+                     "UPDATE Product SET numberOfUnits = numberOfUnits + '%d' WHERE productID = '%d'", units, s.productID));
+            }
+            esql.commitTransaction();
+            this.striped.remove(e.getKey());
+         }catch (SQLException ex){
+            // kept striped, folded on a later pass.
+            esql.rollbackTransaction();
+         }
+      }
+      esql.clearStore();
+   }//end release
+
+}//end StockLedger
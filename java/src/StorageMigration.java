@@ -0,0 +1,497 @@
+/*
+ * Online storage migration
+ * ========================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This class migrates a database created by an earlier create_tables.sql to
+ * the current layout while the application keeps running:
+ *
+ *  - Product gets the surrogate key productID, and Orders, ProductUpdates
+ *    and ProductSupplyRequests reference it instead of (storeID, productName).
+ *  - The space padded char(n) name columns become varchar(n).
+ *  - The children's copies of storeID and productName are dropped, with
+ *    the (productID, storeID, productName) key an earlier run added, so
+ *    their rows and Product's indexes shrink.
+ *
+ * The copies are needed by the application of the previous release, which
+ * still writes them, so a first run only makes them plain nullable columns
+ * that no key references; a trigger fills productID from them. Once every
+ * process runs the current release, a run with migrate.dropCopies set
+ * drops them and the trigger. Dropped columns take no space in new and
+ * updated rows; VACUUM FULL reclaims it from the others.
+ *
+ * Long work is done in small autocommitted batches and indexes are built
+ * concurrently, so writers are never blocked for long. A converted column
+ * is filled in a shadow column kept in sync by a trigger, then swapped in
+ * with one short ACCESS EXCLUSIVE lock that is retried when it would wait.
+ * Every step checks what is already done, so an interrupted run can be
+ * restarted. On a sharded deployment run it against every shard.
+ *
+ */
+public class StorageMigration {
+   // child tables of Product, their keys and their productID index.
+   private static final String[][] CHILDREN = {
+      {"Orders", "orderNumber", "orders_product_indx"},
+      {"ProductUpdates", "updateNumber", "productUpdates_product_indx"},
+      {"ProductSupplyRequests", "requestNumber", "productSRequests_product_indx"},
+   };
+
+   // a char(n) column converted to varchar(n).
+   private static class Conversion {
+      final String table;
+      final String key;
+      final String column;
+      final String type;
+      // index on the column, rebuilt on the new one, or null.
+      final String index;
+      final String indexColumns;
+      final boolean primary;
+
+      Conversion(String table, String key, String column, String type, String index, String indexColumns, boolean primary) {
+         this.table = table;
+         this.key = key;
+         this.column = column;
+         this.type = type;
+         this.index = index;
+         this.indexColumns = indexColumns;
+         this.primary = primary;
+      }
+   }
+
+   private static final Conversion[] CONVERSIONS = {
+      new Conversion("Users", "userID", "name", "varchar(50)", null, null, false),
+      new Conversion("Users", "userID", "password", "varchar(11)", null, null, false),
+      new Conversion("Users", "userID", "type", "varchar(10)", "usertype_indx", "type_new", false),
+      new Conversion("Store", "storeID", "name", "varchar(30)", null, null, false),
+      new Conversion("Product", "productID", "productName", "varchar(30)", "product_pkey", "storeID, productName_new", true),
+   };
+
+   // attempts of a statement that keeps finding its tables busy.
+   private static final int MAX_ATTEMPTS = 20;
+
+   private final Connection conn;
+   private final int batchSize;
+   private final long pauseMillis;
+   private final long lockTimeoutMillis;
+   private final boolean dropCopies;
+
+   /**
+    * Creates a new migration
+    *
+    * @param conn the connection the migration runs on, left in autocommit
+    * @param batchSize the rows changed per transaction
+    * @param pauseMillis the pause between batches, to leave room for the workload
+    * @param lockTimeoutMillis how long a swap waits for its lock before retrying
+    * @param dropCopies true to drop the children's storeID and productName,
+    *        once no process of the previous release writes them
+    */
+   public StorageMigration(Connection conn, int batchSize, long pauseMillis, long lockTimeoutMillis, boolean dropCopies) {
+      this.conn = conn;
+      this.batchSize = Math.max(1, batchSize);
+      this.pauseMillis = pauseMillis;
+      this.lockTimeoutMillis = lockTimeoutMillis;
+      this.dropCopies = dropCopies;
+   }//end StorageMigration
+
+   /**
+    * Runs every step that is not done yet.
+    *
+    * @throws java.sql.SQLException when a step failed
+    * @throws java.lang.InterruptedException when interrupted between batches
+    */
+   public void run() throws SQLException, InterruptedException {
+      this.conn.setAutoCommit(true);
+      // a DDL statement waiting for its lock blocks the workload queued behind
+      // it, so it gives up after a while and is retried.
+      execute(String.format("SET lock_timeout = %d", this.lockTimeoutMillis));
+      addProductIDs();
+      for (String[] child : CHILDREN)
+         linkChild(child[0], child[1], child[2]);
+      for (Conversion c : CONVERSIONS)
+         convert(c);
+      for (String[] child : CHILDREN)
+         unpinChild(child[0]);
+      execute("ALTER TABLE Product DROP CONSTRAINT IF EXISTS product_productid_storeid_productname_key");
+      if (this.dropCopies) {
+         for (String[] child : CHILDREN)
+            dropCopies(child[0]);
+         execute("DROP FUNCTION IF EXISTS set_product_id()");
+      }
+      for (String table : new String[] {"Users", "Store", "Product", "Orders", "ProductUpdates", "ProductSupplyRequests"})
+         execute("ANALYZE " + table);
+      System.out.println("Migration done");
+   }//end run
+
+   /*
+    * Adds Product.productID, numbers the existing products and makes it a
+    * unique, not null key. New products are numbered by the default as soon
+    * as it is set.
+    **/
+   private void addProductIDs() throws SQLException, InterruptedException {
+      if (!hasColumn("Product", "productID"))
+         execute("ALTER TABLE Product ADD COLUMN productID integer");
+      execute("CREATE SEQUENCE IF NOT EXISTS product_productid_seq OWNED BY Product.productID");
+      execute("ALTER TABLE Product ALTER COLUMN productID SET DEFAULT nextval('product_productid_seq')");
+      long rows = repeat(String.format(
+         "UPDATE Product SET productID = nextval('product_productid_seq') " +
+         "WHERE ctid = ANY(ARRAY(SELECT ctid FROM Product WHERE productID IS NULL LIMIT %d))", this.batchSize));
+      System.out.println(String.format("Product.productID: numbered %d product(s)", rows));
+      createIndex("product_productid_key", "CREATE UNIQUE INDEX CONCURRENTLY product_productid_key ON Product (productID)");
+      if (!hasConstraint("product_productid_key"))
+         execute("ALTER TABLE Product ADD CONSTRAINT product_productid_key UNIQUE USING INDEX product_productid_key");
+      setNotNull("Product", "productID");
+   }//end addProductIDs
+
+   /*
+    * Adds productID to a child table, fills it for the existing rows and
+    * replaces the (storeID, productName) foreign key by one on productID,
+    * indexed for the listings that join Product. Until the copies are dropped, a trigger fills it for the rows the
+    * previous release inserts.
+    **/
+   private void linkChild(String table, String key, String index) throws SQLException, InterruptedException {
+      if (!hasColumn(table, "productID"))
+         execute(String.format("ALTER TABLE %s ADD COLUMN productID integer", table));
+      if (hasColumn(table, "productName"))
+         fillProductIDs(table, key);
+
+      String fkey = table.toLowerCase() + "_productid_fkey";
+      if (!hasConstraint(fkey)) {
+         execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s FOREIGN KEY (productID) REFERENCES Product(productID) NOT VALID", table, fkey));
+         execute(String.format("ALTER TABLE %s VALIDATE CONSTRAINT %s", table, fkey));
+      }
+      setNotNull(table, "productID");
+      createIndex(index, String.format("CREATE INDEX CONCURRENTLY %s ON %s (productID)", index, table));
+      execute(String.format("ALTER TABLE %s DROP CONSTRAINT IF EXISTS %s_storeid_productname_fkey", table, table.toLowerCase()));
+   }//end linkChild
+
+   // numbers the rows of a child table that still has its storeID and productName.
+   private void fillProductIDs(String table, String key) throws SQLException, InterruptedException {
+      execute("CREATE OR REPLACE FUNCTION set_product_id() RETURNS trigger AS $set$\n" +
+              "BEGIN\n" +
+              "   IF NEW.productID IS NULL OR TG_OP = 'UPDATE' THEN\n" +
+              "      SELECT P.productID INTO NEW.productID\n" +
+              "      FROM Product P\n" +
+              "      WHERE P.storeID = NEW.storeID AND P.productName = NEW.productName;\n" +
+              "   END IF;\n" +
+              "   RETURN NEW;\n" +
+              "END;\n" +
+              "$set$ LANGUAGE plpgsql");
+      String trigger = table.toLowerCase() + "_product_id";
+      if (!hasTrigger(trigger))
+         execute(String.format("CREATE TRIGGER %s BEFORE INSERT OR UPDATE OF storeID, productName ON %s " +
+                               "FOR EACH ROW EXECUTE FUNCTION set_product_id()", trigger, table));
+
+      long rows = backfill(table, key, String.format(
+         "UPDATE %s C SET productID = P.productID FROM Product P " +
+         "WHERE C.%s >= %%d AND C.%s < %%d AND C.productID IS NULL AND P.storeID = C.storeID AND P.productName = C.productName",
+         table, key, key));
+      System.out.println(String.format("%s.productID: filled %d row(s)", table, rows));
+   }//end fillProductIDs
+
+   /*
+    * Drops the (productID, storeID, productName) foreign key an earlier run
+    * added to a child table and lets the current release insert rows
+    * without the copies.
+    **/
+   private void unpinChild(String table) throws SQLException, InterruptedException {
+      execute(String.format("ALTER TABLE %s DROP CONSTRAINT IF EXISTS %s_productid_storeid_productname_fkey", table, table.toLowerCase()));
+      for (String column : new String[] {"storeID", "productName"})
+         if (hasColumn(table, column))
+            execute(String.format("ALTER TABLE %s ALTER COLUMN %s DROP NOT NULL", table, column));
+   }//end unpinChild
+
+   /*
+    * Drops the storeID and productName copies of a child table and the
+    * trigger that filled productID from them, under one short lock.
+    **/
+   private void dropCopies(String table) throws SQLException, InterruptedException {
+      if (!hasColumn(table, "storeID") && !hasColumn(table, "productName"))
+         return;
+      for (int attempt = 1; ; ++attempt) {
+         this.conn.setAutoCommit(false);
+         Statement stmt = this.conn.createStatement();
+         try{
+            stmt.execute(String.format("LOCK TABLE %s IN ACCESS EXCLUSIVE MODE", table));
+            stmt.execute(String.format("DROP TRIGGER IF EXISTS %s_product_id ON %s", table.toLowerCase(), table));
+            stmt.execute(String.format("ALTER TABLE %s DROP COLUMN IF EXISTS storeID, DROP COLUMN IF EXISTS productName", table));
+            this.conn.commit();
+            break;
+         }catch (SQLException e){
+            this.conn.rollback();
+            retryOrThrow(e, attempt);
+         }finally{
+            stmt.close();
+            this.conn.setAutoCommit(true);
+         }
+      }
+      System.out.println(String.format("%s: dropped storeID and productName", table));
+   }//end dropCopies
+
+   /*
+    * Converts a char(n) column to varchar(n) through a shadow column.
+    **/
+   private void convert(Conversion c) throws SQLException, InterruptedException {
+      String shadow = c.column + "_new";
+      if (!hasColumn(c.table, shadow) && "character varying".equals(columnType(c.table, c.column)))
+         return;
+      String sync = String.format("%s_%s_sync", c.table.toLowerCase(), c.column.toLowerCase());
+      String check = String.format("%s_%s_not_null", c.table.toLowerCase(), shadow.toLowerCase());
+
+      if (!hasColumn(c.table, shadow))
+         execute(String.format("ALTER TABLE %s ADD COLUMN %s %s", c.table, shadow, c.type));
+      execute(String.format("CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $sync$\n" +
+                            "BEGIN\n" +
+                            "   NEW.%s := rtrim(NEW.%s);\n" +
+                            "   RETURN NEW;\n" +
+                            "END;\n" +
+                            "$sync$ LANGUAGE plpgsql", sync, shadow, c.column));
+      if (!hasTrigger(sync))
+         execute(String.format("CREATE TRIGGER %s BEFORE INSERT OR UPDATE ON %s FOR EACH ROW EXECUTE FUNCTION %s()", sync, c.table, sync));
+
+      long rows = backfill(c.table, c.key, String.format(
+         "UPDATE %s SET %s = rtrim(%s) WHERE %s >= %%d AND %s < %%d AND %s IS NULL", c.table, shadow, c.column, c.key, c.key, shadow));
+      System.out.println(String.format("%s.%s: copied %d row(s)", c.table, c.column, rows));
+
+      if (c.index != null)
+         createIndex(c.index + "_new", String.format("CREATE %sINDEX CONCURRENTLY %s_new ON %s (%s)",
+                                                     c.primary ? "UNIQUE " : "", c.index, c.table, c.indexColumns));
+      if (!hasConstraint(check)) {
+         execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s CHECK (%s IS NOT NULL) NOT VALID", c.table, check, shadow));
+         execute(String.format("ALTER TABLE %s VALIDATE CONSTRAINT %s", c.table, check));
+      }
+
+      // the swap: the only step that blocks the table, briefly.
+      for (int attempt = 1; ; ++attempt) {
+         this.conn.setAutoCommit(false);
+         Statement stmt = this.conn.createStatement();
+         try{
+            // taken up front, a weaker lock held while waiting for it could deadlock with the workload.
+            stmt.execute(String.format("LOCK TABLE %s IN ACCESS EXCLUSIVE MODE", c.table));
+            stmt.execute(String.format("DROP TRIGGER %s ON %s", sync, c.table));
+            // drops the indexes and the primary key on the old column too.
+            stmt.execute(String.format("ALTER TABLE %s DROP COLUMN %s", c.table, c.column));
+            stmt.execute(String.format("ALTER TABLE %s RENAME COLUMN %s TO %s", c.table, shadow, c.column));
+            // the validated check lets this skip the table scan.
+            stmt.execute(String.format("ALTER TABLE %s ALTER COLUMN %s SET NOT NULL", c.table, c.column));
+            stmt.execute(String.format("ALTER TABLE %s DROP CONSTRAINT %s", c.table, check));
+            if (c.primary)
+               stmt.execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s PRIMARY KEY USING INDEX %s_new", c.table, c.index, c.index));
+            else if (c.index != null)
+               stmt.execute(String.format("ALTER INDEX %s_new RENAME TO %s", c.index, c.index));
+            this.conn.commit();
+            break;
+         }catch (SQLException e){
+            this.conn.rollback();
+            retryOrThrow(e, attempt);
+         }finally{
+            stmt.close();
+            this.conn.setAutoCommit(true);
+         }
+      }
+      execute(String.format("DROP FUNCTION IF EXISTS %s()", sync));
+      System.out.println(String.format("%s.%s: now %s", c.table, c.column, c.type));
+   }//end convert
+
+   /*
+    * Runs an update over the key range of a table in slices of batchSize
+    * keys, one transaction each. The update has two %d for the slice bounds.
+    * @return the number of rows changed
+    **/
+   private long backfill(String table, String key, String update) throws SQLException, InterruptedException {
+      Statement stmt = this.conn.createStatement();
+      ResultSet rs = stmt.executeQuery(String.format("SELECT min(%s), max(%s) FROM %s", key, key, table));
+      rs.next();
+      long min = rs.getLong(1);
+      boolean empty = rs.wasNull();
+      long max = rs.getLong(2);
+      stmt.close();
+      if (empty)
+         return 0;
+      long rows = 0;
+      for (long lo = min; lo <= max; lo += this.batchSize) {
+         rows += update(String.format(update, lo, lo + this.batchSize));
+         pause();
+      }
+      return rows;
+   }//end backfill
+
+   // runs an update until it changes no more rows.
+   private long repeat(String update) throws SQLException, InterruptedException {
+      long rows = 0;
+      for (int n = update(update); n > 0; n = update(update)) {
+         rows += n;
+         pause();
+      }
+      return rows;
+   }//end repeat
+
+   /*
+    * Builds an index concurrently, unless a valid one exists. An invalid one
+    * left by an interrupted build is dropped first.
+    **/
+   private void createIndex(String name, String create) throws SQLException, InterruptedException {
+      for (int attempt = 1; ; ++attempt) {
+         String valid = queryString(String.format(
+            "SELECT I.indisvalid FROM pg_index I, pg_class C WHERE C.oid = I.indexrelid AND C.relname = '%s'", name.toLowerCase()));
+         if ("t".equals(valid))
+            return;
+         try{
+            if (valid != null)
+               executeOnce(String.format("DROP INDEX CONCURRENTLY %s", name));
+            executeOnce(create);
+            return;
+         }catch (SQLException e){
+            retryOrThrow(e, attempt);
+         }
+      }
+   }//end createIndex
+
+   /*
+    * Makes a column not null without holding a lock for a table scan: a
+    * check constraint is added unvalidated, validated under a weak lock and
+    * then lets SET NOT NULL skip the scan.
+    **/
+   private void setNotNull(String table, String column) throws SQLException, InterruptedException {
+      if (!"YES".equals(queryString(String.format(
+             "SELECT is_nullable FROM information_schema.columns WHERE table_name = '%s' AND column_name = '%s'",
+             table.toLowerCase(), column.toLowerCase()))))
+         return;
+      String check = String.format("%s_%s_not_null", table.toLowerCase(), column.toLowerCase());
+      if (!hasConstraint(check))
+         execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s CHECK (%s IS NOT NULL) NOT VALID", table, check, column));
+      execute(String.format("ALTER TABLE %s VALIDATE CONSTRAINT %s", table, check));
+      execute(String.format("ALTER TABLE %s ALTER COLUMN %s SET NOT NULL", table, column));
+      execute(String.format("ALTER TABLE %s DROP CONSTRAINT %s", table, check));
+   }//end setNotNull
+
+   private String columnType(String table, String column) throws SQLException {
+      return queryString(String.format("SELECT data_type FROM information_schema.columns WHERE table_name = '%s' AND column_name = '%s'",
+                                       table.toLowerCase(), column.toLowerCase()));
+   }
+
+   private boolean hasColumn(String table, String column) throws SQLException {
+      return columnType(table, column) != null;
+   }
+
+   private boolean hasConstraint(String name) throws SQLException {
+      return queryString(String.format("SELECT conname FROM pg_constraint WHERE conname = '%s'", name.toLowerCase())) != null;
+   }
+
+   private boolean hasTrigger(String name) throws SQLException {
+      return queryString(String.format("SELECT tgname FROM pg_trigger WHERE tgname = '%s'", name.toLowerCase())) != null;
+   }
+
+   // the first column of the first row, or null.
+   private String queryString(String query) throws SQLException {
+      Statement stmt = this.conn.createStatement();
+      ResultSet rs = stmt.executeQuery(query);
+      String value = rs.next() ? rs.getString(1) : null;
+      stmt.close();
+      return value;
+   }
+
+   // runs a statement, retried while the tables it locks are busy.
+   private void execute(String sql) throws SQLException, InterruptedException {
+      for (int attempt = 1; ; ++attempt) {
+         try{
+            executeOnce(sql);
+            return;
+         }catch (SQLException e){
+            retryOrThrow(e, attempt);
+         }
+      }
+   }//end execute
+
+   private void executeOnce(String sql) throws SQLException {
+      Statement stmt = this.conn.createStatement();
+      try{
+         stmt.execute(sql);
+      }finally{
+         stmt.close();
+      }
+   }
+
+   /*
+    * Waits before the next attempt of a statement that failed because the
+    * workload held its locks, rethrows any other failure.
+    **/
+   private void retryOrThrow(SQLException e, int attempt) throws SQLException, InterruptedException {
+      // 55P03: lock_not_available, 40P01: deadlock_detected.
+      boolean busy = "55P03".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
+      if (!busy || attempt >= MAX_ATTEMPTS)
+         throw e;
+      System.out.println("Tables busy, retrying: " + e.getMessage().split("\n")[0]);
+      Thread.sleep(Math.min(this.lockTimeoutMillis * attempt, 10000));
+   }//end retryOrThrow
+
+   // runs an update, retried like execute.
+   private int update(String sql) throws SQLException, InterruptedException {
+      for (int attempt = 1; ; ++attempt) {
+         Statement stmt = this.conn.createStatement();
+         try{
+            return stmt.executeUpdate(sql);
+         }catch (SQLException e){
+            retryOrThrow(e, attempt);
+         }finally{
+            stmt.close();
+         }
+      }
+   }//end update
+
+   private void pause() throws InterruptedException {
+      if (this.pauseMillis > 0)
+         Thread.sleep(this.pauseMillis);
+   }
+
+   /**
+    * Migrates a database from the command line.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dmigrate.dropCopies=true] " +
+            StorageMigration.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      Connection conn = null;
+      try{
+         esql = new Retail (args[0], args[1], args[2], "");
+         conn = esql.openConnection();
+         StorageMigration migration = new StorageMigration(conn, Integer.getInteger("migrate.batchSize", 5000),
+                                                           Long.getLong("migrate.pauseMillis", 10),
+                                                           Long.getLong("migrate.lockTimeoutMillis", 2000),
+                                                           Boolean.getBoolean("migrate.dropCopies"));
+         long start = System.currentTimeMillis();
+         migration.run();
+         System.out.println(String.format("Migrated in %d ms", System.currentTimeMillis() - start));
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         try{
+            if (conn != null)
+               conn.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end StorageMigration
@@ -0,0 +1,249 @@
+/*
+ * Parallel export of tables and query results
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class exports a table or a query result to partitioned CSV files.
+ * The key range of the result is split into slices, each slice is read
+ * over its own connection and written to its own file in parallel. All
+ * slices read the same snapshot, so the parts add up to one consistent
+ * result; rows with a null key are written to a last part of their own.
+ *
+ */
+public class TableExporter {
+   // rows fetched per round trip while streaming a slice.
+   private static final int FETCH_SIZE = 1000;
+   // size of the write buffer in front of each output channel.
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final Retail esql;
+   private final File outputDir;
+   private final int partitions;
+   private final boolean gzip;
+
+   /**
+    * Creates a new exporter
+    *
+    * @param esql the Retail instance used to open connections
+    * @param outputDir the directory the part files are written to
+    * @param partitions the number of slices read in parallel
+    * @param gzip whether the part files are gzip compressed
+    * @throws IllegalStateException on a sharded deployment, where the
+    *         orders are on the shards and not on the main database
+    */
+   public TableExporter(Retail esql, File outputDir, int partitions, boolean gzip) {
+      if (esql.isSharded())
+         throw new IllegalStateException("Exports are not supported on a sharded deployment, run them against each shard");
+      this.esql = esql;
+      this.outputDir = outputDir;
+      this.partitions = Math.max(1, partitions);
+      this.gzip = gzip;
+   }//end TableExporter
+
+   /**
+    * Exports the rows returned by a query. The query is used as a subquery
+    * and must return the integer column keyColumn, which is used to split
+    * the rows into slices.
+    *
+    * @param name the prefix of the part files
+    * @param query the input query string or a table name
+    * @param keyColumn the integer column the key range is split on
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write a part file
+    */
+   public long export(String name, String query, String keyColumn) throws SQLException, IOException {
+      String source = query.trim().contains(" ") ? "(" + query + ")" : query;
+      // the transaction stays open until every slice has started, so the
+      // slices all read the snapshot exported from it.
+      Connection conn = this.esql.openConnection();
+      try{
+         conn.setAutoCommit(false);
+         conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()");
+         rs.next();
+         String snapshot = rs.getString(1);
+         rs = stmt.executeQuery(String.format("SELECT min(%s), max(%s), count(*) - count(%s) FROM %s q",
+                                              keyColumn, keyColumn, keyColumn, source));
+         rs.next();
+         long min = rs.getLong(1);
+         boolean empty = rs.wasNull();
+         long max = rs.getLong(2);
+         long nulls = rs.getLong(3);
+         stmt.close();
+         if (empty && nulls == 0)
+            return 0;
+
+         if (!this.outputDir.exists() && !this.outputDir.mkdirs())
+            throw new IOException("Unable to create directory " + this.outputDir);
+
+         List<String> sqls = new ArrayList<String>();
+         if (!empty) {
+            // split [min, max] into contiguous slices of about the same width.
+            long width = (max - min) / this.partitions + 1;
+            for (long lo = min; lo <= max; lo += width)
+               sqls.add(String.format("SELECT * FROM %s q WHERE %s >= %d AND %s < %d ORDER BY %s",
+                                      source, keyColumn, lo, keyColumn, lo + width, keyColumn));
+         }
+         // rows without a key fall in no range, they get a slice of their own.
+         if (nulls > 0)
+            sqls.add(String.format("SELECT * FROM %s q WHERE %s IS NULL", source, keyColumn));
+
+         List<Callable<Long>> slices = new ArrayList<Callable<Long>>();
+         for (final String sql : sqls) {
+            final File file = new File(this.outputDir, String.format("%s-part-%04d.csv%s", name, slices.size(), this.gzip ? ".gz" : ""));
+            slices.add(new Callable<Long>() {
+               public Long call() throws Exception {
+                  return writeSlice(snapshot, sql, file);
+               }
+            });
+         }
+         return run(slices);
+      }finally{
+         conn.close();
+      }
+   }//end export
+
+   // runs the slices in parallel, rethrowing the first failure.
+   private static long run(List<Callable<Long>> slices) throws SQLException, IOException {
+      ExecutorService pool = Executors.newFixedThreadPool(slices.size());
+      try{
+         long rows = 0;
+         for (Future<Long> f : pool.invokeAll(slices))
+            rows += f.get();
+         return rows;
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new IOException("Export interrupted");
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         if (cause instanceof IOException)
+            throw (IOException) cause;
+         throw new IOException(cause);
+      }finally{
+         pool.shutdownNow();
+      }
+   }//end run
+
+   /*
+    * Streams one slice into a part file over its own connection, in the
+    * snapshot exported by the coordinating transaction.
+    * @return the number of rows written
+    **/
+   private long writeSlice(String snapshot, String sql, File file) throws SQLException, IOException {
+      try (Connection conn = this.esql.openConnection();
+           FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                  StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+         // the driver only streams with a cursor inside a transaction.
+         conn.setAutoCommit(false);
+         conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+         Statement stmt = conn.createStatement();
+         stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+         stmt.setFetchSize(FETCH_SIZE);
+         ResultSet rs = stmt.executeQuery(sql);
+
+         OutputStream out = Channels.newOutputStream(channel);
+         if (this.gzip)
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+         Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+         for (int i = 1; i <= numCol; ++i) {
+            if (i > 1)
+               writer.write(',');
+            writer.write(csvField(rsmd.getColumnName(i)));
+         }
+         writer.write('\n');
+
+         long rowCount = 0;
+         while (rs.next()) {
+            for (int i = 1; i <= numCol; ++i) {
+               if (i > 1)
+                  writer.write(',');
+               String value = rs.getString(i);
+               if (value == null)
+                  continue;
+               writer.write(csvField(value));
+            }
+            writer.write('\n');
+            ++rowCount;
+         }
+         writer.close();
+         stmt.close();
+         conn.commit();
+         return rowCount;
+      }
+   }//end writeSlice
+
+   private static String csvField(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+         return value;
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+
+   /**
+    * Exports a table or query from the command line, for scheduled extracts.
+    *
+    * @param args <dbname> <port> <user> <name> <table|query> <keyColumn> <outputDir> [partitions] [gzip]
+    */
+   public static void main (String[] args) {
+      if (args.length < 7) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            TableExporter.class.getName () +
+            " <dbname> <port> <user> <name> <table|query> <keyColumn> <outputDir> [partitions] [gzip]");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try{
+         esql = new Retail (args[0], args[1], args[2], "");
+         int partitions = args.length > 7 ? Integer.parseInt(args[7]) : 4;
+         boolean gzip = args.length > 8 && Boolean.parseBoolean(args[8]);
+         TableExporter exporter = new TableExporter(esql, new File(args[6]), partitions, gzip);
+         long start = System.currentTimeMillis();
+         long rows = exporter.export(args[3], args[4], args[5]);
+         System.out.println(String.format("Exported %d row(s) in %d ms", rows, System.currentTimeMillis() - start));
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end TableExporter
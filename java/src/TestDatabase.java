@@ -0,0 +1,339 @@
+/*
+ * Throwaway test database
+ * =======================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class runs a private PostgreSQL server for integration tests and
+ * benchmarks. It creates a new cluster in a temporary directory, starts it
+ * on a free port with durability turned off, and builds a template
+ * database: the schema from create_tables.sql and create_indexes.sql and
+ * generated users, stores, products, warehouses and orders, loaded with
+ * COPY. Test databases are copies of the template, so a test gets a fresh
+ * database in a fraction of a second and can be reset by copying again.
+ *
+ * The server binaries are looked up in testdb.pgBin, then PGBIN, then the
+ * PATH. PostgreSQL refuses to run as root: as root, set testdb.runAs to
+ * another user, and the server tools run as that user through runuser,
+ * with the cluster directory handed over to it. start fails when root
+ * runs it without testdb.runAs or when initdb cannot be run.
+ *
+ */
+public class TestDatabase {
+   public static final String TEMPLATE = "retail_template";
+   private static final String USER = "postgres";
+   private static final String[] PRODUCTS = { "7up", "Pepsi", "Lemonade", "Brisk", "Orange Juice",
+                                              "Donuts", "Pudding", "Ice Cream", "Hot and Sour Soup", "Egg" };
+
+   private final File pgBin;
+   private final String runAs;
+   private final File sqlDir;
+   private final int users;
+   private final int stores;
+   private final int productsPerStore;
+   private final int warehouses;
+   private final int orders;
+   private final long seed;
+   private File dir = null;
+   private int port;
+   private Thread shutdownHook = null;
+
+   /**
+    * Creates a new test database, not started yet
+    *
+    * @param pgBin the directory of initdb and pg_ctl, or null to use the PATH
+    * @param runAs the user to run the server as, or null for the current user
+    * @param sqlDir the directory of create_tables.sql and create_indexes.sql
+    * @param users the number of users, one admin, one manager per store and customers
+    * @param stores the number of stores
+    * @param productsPerStore the number of products of every store
+    * @param warehouses the number of warehouses
+    * @param orders the number of past orders
+    * @param seed the seed of the generated data
+    */
+   public TestDatabase(File pgBin, String runAs, File sqlDir, int users, int stores, int productsPerStore, int warehouses, int orders, long seed) {
+      this.pgBin = pgBin;
+      this.runAs = runAs;
+      this.sqlDir = sqlDir;
+      this.users = Math.max(users, stores + 2);
+      this.stores = stores;
+      this.productsPerStore = productsPerStore;
+      this.warehouses = warehouses;
+      this.orders = orders;
+      this.seed = seed;
+   }//end TestDatabase
+
+   /**
+    * Creates a test database from the testdb.* system properties.
+    */
+   public static TestDatabase fromProperties() {
+      String bin = System.getProperty("testdb.pgBin", System.getenv("PGBIN"));
+      String sql = System.getProperty("testdb.sqlDir");
+      if (sql == null)
+         sql = new File("sql/src").isDirectory() ? "sql/src" : "../sql/src";
+      String runAs = System.getProperty("testdb.runAs");
+      return new TestDatabase(bin != null ? new File(bin) : null, runAs != null && !runAs.isEmpty() ? runAs : null, new File(sql),
+                              Integer.getInteger("testdb.users", 100),
+                              Integer.getInteger("testdb.stores", 20),
+                              Integer.getInteger("testdb.productsPerStore", 10),
+                              Integer.getInteger("testdb.warehouses", 5),
+                              Integer.getInteger("testdb.orders", 500),
+                              Long.getLong("testdb.seed", 166));
+   }//end fromProperties
+
+   /**
+    * Creates the cluster, starts the server and builds the template
+    * database. The server is stopped when the JVM exits, if stop was not
+    * called before.
+    *
+    * @throws java.io.IOException when the server could not be started, or
+    *         root started it without testdb.runAs
+    * @throws java.sql.SQLException when failed to build the template
+    */
+   public synchronized void start() throws IOException, SQLException {
+      if (this.dir != null)
+         return;
+      if (this.runAs == null && "root".equals(System.getProperty("user.name")))
+         throw new IOException("PostgreSQL does not run as root, set testdb.runAs to the user to run it as");
+      this.dir = Files.createTempDirectory("retail-testdb").toFile();
+      if (this.runAs != null) {
+         java.nio.file.attribute.UserPrincipal owner = this.dir.toPath().getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(this.runAs);
+         Files.setOwner(this.dir.toPath(), owner);
+      }
+      this.shutdownHook = new Thread(new Runnable() {
+         public void run() {
+            stop();
+         }
+      }, "testdb-shutdown");
+      Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+
+      File data = new File(this.dir, "data");
+      run("initdb", "-D", data.getPath(), "-U", USER, "-A", "trust", "-E", "UTF8", "--no-sync");
+      try (ServerSocket socket = new ServerSocket(0)) {
+         this.port = socket.getLocalPort();
+      }
+      // nothing here needs to survive a crash.
+      String options = String.format("-p %d -k %s -c listen_addresses=localhost -c fsync=off " +
+                                     "-c synchronous_commit=off -c full_page_writes=off", this.port, this.dir.getPath());
+      run("pg_ctl", "-D", data.getPath(), "-o", options, "-l", new File(this.dir, "server.log").getPath(), "-w", "start");
+
+      Connection conn = connect("postgres");
+      try{
+         Statement stmt = conn.createStatement();
+         stmt.execute("CREATE DATABASE " + TEMPLATE);
+         stmt.close();
+      }finally{
+         conn.close();
+      }
+      conn = connect(TEMPLATE);
+      try{
+         for (String file : new String[] { "create_tables.sql", "create_indexes.sql" }) {
+            Statement stmt = conn.createStatement();
+            stmt.execute(new String(Files.readAllBytes(new File(this.sqlDir, file).toPath()), StandardCharsets.UTF_8));
+            stmt.close();
+         }
+         seed(conn);
+      }finally{
+         conn.close();
+      }
+   }//end start
+
+   /**
+    * Stops the server and removes the cluster.
+    */
+   public synchronized void stop() {
+      if (this.dir == null)
+         return;
+      try{
+         run("pg_ctl", "-D", new File(this.dir, "data").getPath(), "-m", "immediate", "-w", "stop");
+      }catch (IOException e){
+         // the directory is removed anyway.
+      }
+      try (Stream<java.nio.file.Path> files = Files.walk(this.dir.toPath())) {
+         files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }catch (IOException e){
+         // ignored, left in the temporary directory.
+      }
+      this.dir = null;
+      if (this.shutdownHook != null && Thread.currentThread() != this.shutdownHook) {
+         try{
+            Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+         }catch (IllegalStateException e){
+            // the JVM is already shutting down.
+         }
+      }
+   }//end stop
+
+   /**
+    * Creates a database as a copy of the template, replacing any database
+    * of that name. Call it again to reset a database between tests.
+    *
+    * @param name the database name
+    * @throws java.sql.SQLException when failed to create the database
+    */
+   public void createDatabase(String name) throws SQLException {
+      Connection conn = connect("postgres");
+      try{
+         Statement stmt = conn.createStatement();
+         stmt.execute("DROP DATABASE IF EXISTS " + name + " WITH (FORCE)");
+         stmt.execute("CREATE DATABASE " + name + " TEMPLATE " + TEMPLATE);
+         stmt.close();
+      }finally{
+         conn.close();
+      }
+   }//end createDatabase
+
+   /**
+    * Opens a connection to a database of the server.
+    */
+   public Connection connect(String name) throws SQLException {
+      return DriverManager.getConnection("jdbc:postgresql://localhost:" + this.port + "/" + name, USER, "");
+   }
+
+   /**
+    * Returns the port of the server, as the Retail constructor takes it.
+    */
+   public String port() {
+      return String.valueOf(this.port);
+   }
+
+   /**
+    * Returns the database user name.
+    */
+   public String user() {
+      return USER;
+   }
+
+   /*
+    * Loads the generated data into the template: user 1 is the admin, users
+    * 2 to stores + 1 manage the stores, the others are customers.
+    **/
+   private void seed(Connection conn) throws SQLException, IOException {
+      Random rnd = new Random(this.seed);
+      CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+
+      StringBuilder rows = new StringBuilder();
+      for (int u = 1; u <= this.users; ++u) {
+         String type = u == 1 ? "admin" : u <= this.stores + 1 ? "manager" : "customer";
+         rows.append(String.format(Locale.ROOT, "%s%d,xyz,%.5f,%.5f,%s\n", type, u, rnd.nextDouble() * 100, rnd.nextDouble() * 60, type));
+      }
+      copyIn(copy, "Users (name, password, latitude, longitude, type)", rows);
+
+      rows.setLength(0);
+      for (int s = 1; s <= this.stores; ++s)
+         rows.append(String.format(Locale.ROOT, "%d,store%d,%.5f,%.5f,%d,%d-01-01\n", s, s, rnd.nextDouble() * 100, rnd.nextDouble() * 60, s + 1,
+                                   1950 + rnd.nextInt(70)));
+      copyIn(copy, "Store (storeID, name, latitude, longitude, managerID, dateEstablished)", rows);
+
+      rows.setLength(0);
+      List<String> names = new ArrayList<String>(Arrays.asList(PRODUCTS));
+      for (int p = names.size(); p < this.productsPerStore; ++p)
+         names.add("Item " + p);
+      for (int s = 1; s <= this.stores; ++s)
+         for (int p = 0; p < this.productsPerStore; ++p)
+            rows.append(String.format(Locale.ROOT, "%d,%s,%d,%d\n", s, names.get(p), 10 + rnd.nextInt(90), 1 + rnd.nextInt(9)));
+      copyIn(copy, "Product (storeID, productName, numberOfUnits, pricePerUnit)", rows);
+
+      rows.setLength(0);
+      for (int w = 1; w <= this.warehouses; ++w)
+         rows.append(String.format(Locale.ROOT, "%d,%d,%.5f,%.5f\n", w, 10000 + rnd.nextInt(20000), rnd.nextDouble() * 100, rnd.nextDouble() * 60));
+      copyIn(copy, "Warehouse (WarehouseID, area, latitude, longitude)", rows);
+
+      // past orders spread over the last 90 days; the products above are numbered from 1 in store order.
+      rows.setLength(0);
+      long now = System.currentTimeMillis();
+      int customers = this.users - this.stores - 1;
+      for (int o = 0; o < this.orders; ++o) {
+         java.sql.Timestamp at = new java.sql.Timestamp(now - (long) (rnd.nextDouble() * 90 * 86400000L));
+         rows.append(String.format(Locale.ROOT, "%d,%d,%d,%s\n", this.stores + 2 + rnd.nextInt(customers),
+                                   1 + rnd.nextInt(this.stores * this.productsPerStore), 1 + rnd.nextInt(10), at));
+      }
+      copyIn(copy, "Orders (customerID, productID, unitsOrdered, orderTime)", rows);
+
+      Statement stmt = conn.createStatement();
+      stmt.execute("ANALYZE");
+      stmt.close();
+   }//end seed
+
+   private static void copyIn(CopyManager copy, String table, StringBuilder rows) throws SQLException, IOException {
+      copy.copyIn("COPY " + table + " FROM STDIN WITH (FORMAT csv)", new StringReader(rows.toString()));
+   }
+
+   // runs a server tool, as testdb.runAs if set, failing with its output when it does not succeed.
+   private void run(String tool, String... args) throws IOException {
+      List<String> command = new ArrayList<String>();
+      if (this.runAs != null)
+         command.addAll(Arrays.asList("runuser", "-u", this.runAs, "--"));
+      command.add(this.pgBin != null ? new File(this.pgBin, tool).getPath() : tool);
+      command.addAll(Arrays.asList(args));
+      Process p;
+      try{
+         p = new ProcessBuilder(command).redirectErrorStream(true).start();
+      }catch (IOException e){
+         throw new IOException("cannot run " + tool + ", set testdb.pgBin or PGBIN: " + e.getMessage());
+      }
+      StringBuilder output = new StringBuilder();
+      BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+      for (String line = out.readLine(); line != null; line = out.readLine())
+         output.append(line).append('\n');
+      try{
+         if (p.waitFor() != 0)
+            throw new IOException(tool + " failed:\n" + output);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new IOException(tool + " interrupted");
+      }
+   }//end run
+
+   /**
+    * Starts a test database, creates the database 'retail' from the
+    * template and prints the arguments to connect to it, then keeps the
+    * server running until standard input is closed.
+    *
+    * @param args none
+    */
+   public static void main (String[] args) {
+      TestDatabase db = fromProperties();
+      try{
+         long start = System.nanoTime();
+         db.start();
+         db.createDatabase("retail");
+         System.err.println(String.format("Test database ready in %.1f s, close standard input to stop it", (System.nanoTime() - start) / 1e9));
+         System.out.println("retail " + db.port() + " " + db.user());
+         System.out.flush();
+         while (System.in.read() >= 0)
+            ;
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         db.stop();
+      }
+   }//end main
+
+}//end TestDatabase
@@ -0,0 +1,238 @@
+/*
+ * Nearest-warehouse routing for product supply requests
+ * =====================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This class picks the warehouses closest to a store. Warehouse and store
+ * coordinates are loaded once into memory and the warehouses are kept in a
+ * k-d tree, so a lookup does not touch the database.
+ *
+ * With the 'miles' distance metric the points are placed on the unit sphere,
+ * where the straight-line (chord) distance orders points the same way as the
+ * great-circle distance.
+ *
+ */
+public class WarehouseRouter {
+   private final boolean miles;
+   // warehouse IDs and areas, indexed like the tree nodes.
+   private final int[] warehouseIDs;
+   private final int[] areas;
+   private final double[][] points;
+   // tree[i] is the index of the warehouse stored at node i of the
+   // implicit tree over the sorted ranges of points.
+   private final int[] tree;
+   private final Map<Integer, double[]> stores;
+
+   /**
+    * A warehouse picked for a store, with its distance in the units of the
+    * distance metric.
+    */
+   public static class Route {
+      public final int storeID;
+      public final int warehouseID;
+      public final double distance;
+
+      Route(int storeID, int warehouseID, double distance) {
+         this.storeID = storeID;
+         this.warehouseID = warehouseID;
+         this.distance = distance;
+      }
+
+      public String toString() {
+         return String.format("store %d -> warehouse %d (%.2f)", this.storeID, this.warehouseID, this.distance);
+      }
+   }//end Route
+
+   private WarehouseRouter(boolean miles, int[] warehouseIDs, int[] areas, double[][] points, Map<Integer, double[]> stores) {
+      this.miles = miles;
+      this.warehouseIDs = warehouseIDs;
+      this.areas = areas;
+      this.points = points;
+      this.stores = stores;
+      this.tree = new int[points.length];
+      Integer[] order = new Integer[points.length];
+      for (int i = 0; i < order.length; ++i)
+         order[i] = i;
+      build(order, 0, order.length, 0);
+   }//end WarehouseRouter
+
+   /**
+    * Loads the Warehouse and Store coordinates and builds the index.
+    *
+    * @param conn the connection to read from
+    * @return a router over the current warehouses
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static WarehouseRouter load(Connection conn) throws SQLException {
+      boolean miles = Retail.DISTANCE_METRIC.equals("miles");
+      Statement stmt = conn.createStatement();
+
+      List<double[]> points = new ArrayList<double[]>();
+      List<int[]> ids = new ArrayList<int[]>();
+      ResultSet rs = stmt.executeQuery("SELECT warehouseID, area, latitude, longitude FROM Warehouse");
+      while (rs.next()) {
+         ids.add(new int[] { rs.getInt(1), rs.getInt(2) });
+         points.add(toPoint(miles, rs.getDouble(3), rs.getDouble(4)));
+      }
+      rs.close();
+
+      Map<Integer, double[]> stores = new HashMap<Integer, double[]>();
+      rs = stmt.executeQuery("SELECT storeID, latitude, longitude FROM Store");
+      while (rs.next())
+         stores.put(rs.getInt(1), toPoint(miles, rs.getDouble(2), rs.getDouble(3)));
+      stmt.close();
+
+      int[] warehouseIDs = new int[ids.size()];
+      int[] areas = new int[ids.size()];
+      for (int i = 0; i < warehouseIDs.length; ++i) {
+         warehouseIDs[i] = ids.get(i)[0];
+         areas[i] = ids.get(i)[1];
+      }
+      return new WarehouseRouter(miles, warehouseIDs, areas, points.toArray(new double[points.size()][]), stores);
+   }//end load
+
+   /**
+    * Returns the warehouse closest to a store.
+    *
+    * @param storeID the store to route
+    * @return the route, or null if the store or no warehouse is known
+    */
+   public Route nearest(int storeID) {
+      List<Route> routes = ranked(storeID, 1);
+      return routes.isEmpty() ? null : routes.get(0);
+   }//end nearest
+
+   /**
+    * Returns up to k warehouses for a store, closest first. Equally distant
+    * warehouses are ordered by larger area first.
+    *
+    * @param storeID the store to route
+    * @param k the number of warehouses to return
+    * @return the routes, closest first
+    */
+   public List<Route> ranked(int storeID, int k) {
+      List<Route> routes = new ArrayList<Route>();
+      double[] store = this.stores.get(storeID);
+      if (store == null || this.points.length == 0 || k <= 0)
+         return routes;
+
+      // max-heap on distance holding the k best candidates found so far.
+      PriorityQueue<double[]> best = new PriorityQueue<double[]>(k, new Comparator<double[]>() {
+         public int compare(double[] a, double[] b) {
+            int c = Double.compare(b[0], a[0]);
+            return c != 0 ? c : Integer.compare(areas[(int) a[1]], areas[(int) b[1]]);
+         }
+      });
+      search(store, 0, this.points.length, 0, k, best);
+
+      double[][] found = best.toArray(new double[best.size()][]);
+      Arrays.sort(found, new Comparator<double[]>() {
+         public int compare(double[] a, double[] b) {
+            int c = Double.compare(a[0], b[0]);
+            return c != 0 ? c : Integer.compare(areas[(int) b[1]], areas[(int) a[1]]);
+         }
+      });
+      for (double[] f : found)
+         routes.add(new Route(storeID, this.warehouseIDs[(int) f[1]], toDistance(Math.sqrt(f[0]))));
+      return routes;
+   }//end ranked
+
+   /**
+    * Routes a batch of stores to their nearest warehouse in one pass.
+    *
+    * @param storeIDs the stores to route
+    * @return the nearest warehouse ID per store, in input order; unknown
+    *         stores are left out
+    */
+   public Map<Integer, Integer> route(Collection<Integer> storeIDs) {
+      Map<Integer, Integer> routes = new LinkedHashMap<Integer, Integer>();
+      for (Integer storeID : storeIDs) {
+         if (routes.containsKey(storeID))
+            continue;
+         Route r = nearest(storeID);
+         if (r != null)
+            routes.put(storeID, r.warehouseID);
+      }
+      return routes;
+   }//end route
+
+   /*
+    * Lays out points[order[lo..hi)] as a balanced tree: the median on the
+    * axis goes to the middle slot, the halves go left and right of it.
+    **/
+   private void build(Integer[] order, int lo, int hi, int depth) {
+      if (lo >= hi)
+         return;
+      final int axis = depth % this.points[0].length;
+      Arrays.sort(order, lo, hi, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return Double.compare(points[a][axis], points[b][axis]);
+         }
+      });
+      int mid = (lo + hi) >>> 1;
+      this.tree[mid] = order[mid];
+      build(order, lo, mid, depth + 1);
+      build(order, mid + 1, hi, depth + 1);
+   }//end build
+
+   private void search(double[] target, int lo, int hi, int depth, int k, PriorityQueue<double[]> best) {
+      if (lo >= hi)
+         return;
+      int mid = (lo + hi) >>> 1;
+      int node = this.tree[mid];
+      double[] p = this.points[node];
+
+      double d = 0;
+      for (int i = 0; i < p.length; ++i)
+         d += (p[i] - target[i]) * (p[i] - target[i]);
+      best.add(new double[] { d, node });
+      if (best.size() > k)
+         best.poll();
+
+      int axis = depth % p.length;
+      double diff = target[axis] - p[axis];
+      if (diff < 0) {
+         search(target, lo, mid, depth + 1, k, best);
+         if (best.size() < k || diff * diff <= best.peek()[0])
+            search(target, mid + 1, hi, depth + 1, k, best);
+      } else {
+         search(target, mid + 1, hi, depth + 1, k, best);
+         if (best.size() < k || diff * diff <= best.peek()[0])
+            search(target, lo, mid, depth + 1, k, best);
+      }
+   }//end search
+
+   private static double[] toPoint(boolean miles, double lat, double lng) {
+      if (!miles)
+         return new double[] { lat, lng };
+      double phi = Math.toRadians(lat);
+      double lambda = Math.toRadians(lng);
+      return new double[] { Math.cos(phi) * Math.cos(lambda), Math.cos(phi) * Math.sin(lambda), Math.sin(phi) };
+   }
+
+   private double toDistance(double straight) {
+      if (!this.miles)
+         return straight;
+      return 2 * Retail.EARTH_RADIUS_MILES * Math.asin(Math.min(1.0, straight / 2));
+   }
+
+}//end WarehouseRouter
@@ -0,0 +1,207 @@
+/*
+ * Integration tests
+ * =================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the order path against a TestDatabase: request keys, the stock
+ * guarantee under concurrent orders and the sales rollups. Every test gets
+ * a fresh copy of the template.
+ *
+ * The server binaries are found through testdb.pgBin or PGBIN; run as
+ * root, the tests need testdb.runAs to start the server as another user.
+ * They fail rather than skip when the server cannot be started.
+ *
+ */
+public class RetailIntegrationTest {
+   private static final String DB = "retail_it";
+   // store 1, managed by user 2; users past the managers are customers.
+   private static final int STORE = 1;
+   private static final String PRODUCT = "Pepsi";
+
+   private static TestDatabase db = null;
+   private final List<Retail> sessions = new ArrayList<Retail>();
+
+   @BeforeAll
+   public static void startServer() throws Exception {
+      db = TestDatabase.fromProperties();
+      db.start();
+   }
+
+   @AfterAll
+   public static void stopServer() {
+      if (db != null)
+         db.stop();
+   }
+
+   @BeforeEach
+   public void createDatabase() throws Exception {
+      db.createDatabase(DB);
+   }
+
+   @AfterEach
+   public void closeSessions() {
+      for (int i = this.sessions.size() - 1; i >= 0; --i)
+         this.sessions.get(i).cleanup();
+      this.sessions.clear();
+   }
+
+   private Retail session() throws Exception {
+      Retail esql = new Retail(DB, db.port(), db.user(), "", this.sessions.isEmpty() ? null : this.sessions.get(0));
+      this.sessions.add(esql);
+      return esql;
+   }
+
+   // moves customers next to the store, so it is in range for them.
+   private static List<Integer> customersAtStore(Connection conn, int count) throws Exception {
+      List<Integer> customers = new ArrayList<Integer>();
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery(String.format("SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID LIMIT %d", count));
+      while (rs.next())
+         customers.add(rs.getInt(1));
+      stmt.executeUpdate(String.format(
+         "UPDATE Users U SET latitude = S.latitude, longitude = S.longitude FROM Store S WHERE S.storeID = %d AND U.type = 'customer' AND U.userID <= %d",
+         STORE, customers.get(customers.size() - 1)));
+      stmt.close();
+      return customers;
+   }
+
+   private static long queryLong(Connection conn, String query) throws Exception {
+      Statement stmt = conn.createStatement();
+      ResultSet rs = stmt.executeQuery(query);
+      rs.next();
+      long value = rs.getLong(1);
+      stmt.close();
+      return value;
+   }
+
+   @Test
+   public void retriedOrderWithRequestKeyIsPlacedOnce() throws Exception {
+      try (Connection conn = db.connect(DB)) {
+         int customer = customersAtStore(conn, 1).get(0);
+         long before = queryLong(conn, "SELECT count(*) FROM Orders");
+
+         Retail esql = session();
+         int first = Retail.submitOrder(esql, customer, STORE, PRODUCT, 1, "retry-1");
+         assertTrue(first > 0, "order refused with code " + first);
+         assertEquals(first, Retail.submitOrder(esql, customer, STORE, PRODUCT, 1, "retry-1"));
+         // a second session has not seen the key yet and finds it in the database.
+         assertEquals(first, Retail.submitOrder(session(), customer, STORE, PRODUCT, 1, "retry-1"));
+         int other = Retail.submitOrder(esql, customer, STORE, PRODUCT, 1, "retry-2");
+         assertTrue(other > 0 && other != first);
+
+         assertEquals(before + 2, queryLong(conn, "SELECT count(*) FROM Orders"));
+      }
+   }//end retriedOrderWithRequestKeyIsPlacedOnce
+
+   @Test
+   public void concurrentOrdersSellOutExactly() throws Exception {
+      final int stock = 40;
+      final int threads = 8;
+      final int ordersPerThread = 10;
+      final List<Integer> customers;
+      try (Connection conn = db.connect(DB)) {
+         customers = customersAtStore(conn, threads);
+      }
+      StockLedger.setStock(session(), STORE, PRODUCT, stock, 2);
+
+      List<Callable<int[]>> buyers = new ArrayList<Callable<int[]>>();
+      for (int t = 0; t < threads; ++t) {
+         final Retail esql = session();
+         final int customer = customers.get(t);
+         buyers.add(new Callable<int[]>() {
+            public int[] call() throws Exception {
+               int[] placedAndRefused = new int[2];
+               for (int i = 0; i < ordersPerThread; ++i) {
+                  int result = Retail.submitOrder(esql, customer, STORE, PRODUCT, 1, null);
+                  if (result > 0)
+                     ++placedAndRefused[0];
+                  else if (result == Retail.ORDER_NO_STOCK)
+                     ++placedAndRefused[1];
+               }
+               return placedAndRefused;
+            }
+         });
+      }
+      int placed = 0;
+      int refused = 0;
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         for (Future<int[]> f : pool.invokeAll(buyers)) {
+            placed += f.get()[0];
+            refused += f.get()[1];
+         }
+      }finally{
+         pool.shutdownNow();
+      }
+      for (Retail esql : this.sessions)
+         esql.getLedger().releaseAll(esql);
+
+      assertEquals(stock, placed);
+      assertEquals(threads * ordersPerThread - stock, refused);
+      try (Connection conn = db.connect(DB)) {
+         assertEquals(0, queryLong(conn, String.format(
+            "SELECT numberOfUnits FROM ProductStock WHERE storeID = %d AND productName = '%s'", STORE, PRODUCT)));
+      }
+   }//end concurrentOrdersSellOutExactly
+
+   @Test
+   public void rollupsMatchOrders() throws Exception {
+      List<Integer> customers;
+      try (Connection conn = db.connect(DB)) {
+         customers = customersAtStore(conn, 5);
+      }
+      Retail esql = session();
+      SalesRollups rollups = new SalesRollups(esql, 7);
+      // the seeded orders are older than the feed and rolled up by the backfill.
+      assertTrue(rollups.backfill(2) > 0);
+      for (int i = 0; i < 20; ++i)
+         assertTrue(Retail.submitOrder(esql, customers.get(i % customers.size()), STORE, PRODUCT, 1 + i % 3, null) > 0);
+      assertEquals(20, rollups.flush());
+      assertEquals(0, rollups.flush());
+      rollups.stop();
+
+      try (Connection conn = db.connect(DB)) {
+         assertEquals(0, queryLong(conn, "SELECT count(*) FROM SalesRollupQueue"));
+         for (String period : new String[] { "Hourly", "Daily" }) {
+            String bucket = period.equals("Hourly") ? "date_trunc('hour', O.orderTime)" : "O.orderTime::date";
+            assertEquals(0, queryLong(conn, String.format(
+               "SELECT count(*) FROM (SELECT P.storeID, %s AS bucket, P.productName, sum(O.unitsOrdered) AS units, " +
+               "                             sum(O.unitsOrdered * P.pricePerUnit) AS revenue, count(DISTINCT O.customerID) AS customers " +
+               "                      FROM Orders O JOIN Product P ON P.productID = O.productID GROUP BY 1, 2, 3) A " +
+               "FULL JOIN Sales%s R ON R.storeID = A.storeID AND R.bucket = A.bucket AND R.productName = A.productName " +
+               "WHERE R.unitsSold IS DISTINCT FROM A.units OR R.customers IS DISTINCT FROM A.customers " +
+               "   OR abs(R.revenue - A.revenue) > 1e-6 OR R.revenue IS NULL OR A.revenue IS NULL", bucket, period)),
+               period + " rollups differ from Orders");
+         }
+      }
+      // merged over every store, the same product name stays one entry per store.
+      SalesSketch sketch = SalesSketch.load(esql, null, "2000-01-01", "2100-01-01");
+      for (SpaceSaving.Entry e : sketch.topProducts(SpaceSaving.DEFAULT_CAPACITY))
+         assertTrue(e.key.matches("\\d+/.+"), "product not keyed by store: " + e.key);
+      assertTrue(sketch.topProducts(1).size() == 1);
+   }//end rollupsMatchOrders
+
+}//end RetailIntegrationTest
@@ -4,6 +4,10 @@ DROP INDEX IF EXISTS orders_indx;
 DROP INDEX IF EXISTS product_indx;
 DROP INDEX IF EXISTS productUpdates_indx;
 DROP INDEX IF EXISTS productSRequests_indx;
+DROP INDEX IF EXISTS store_location_indx;
+DROP INDEX IF EXISTS orders_product_indx;
+DROP INDEX IF EXISTS productUpdates_product_indx;
+DROP INDEX IF EXISTS productSRequests_product_indx;
 
 CREATE INDEX user_indx
 ON Users
@@ -27,4 +31,22 @@ USING btree (updateNumber);
 
 CREATE INDEX productSRequests_indx
 ON ProductSupplyRequests
-USING btree (requestNumber);
\ No newline at end of file
+USING btree (requestNumber);
+
+CREATE INDEX store_location_indx
+ON Store
+USING gist (point(latitude, longitude));
+
+-- the store and product of a child row are found through Product, so the
+-- per store listings go from the products of the store to their rows.
+CREATE INDEX orders_product_indx
+ON Orders
+USING btree (productID);
+
+CREATE INDEX productUpdates_product_indx
+ON ProductUpdates
+USING btree (productID);
+
+CREATE INDEX productSRequests_product_indx
+ON ProductSupplyRequests
+USING btree (productID);
@@ -5,19 +5,30 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS OrderRequestKeys CASCADE;
+DROP TABLE IF EXISTS UserCredentials CASCADE;
+DROP TABLE IF EXISTS ProductStockSlots CASCADE;
+DROP TABLE IF EXISTS SalesHourly CASCADE;
+DROP TABLE IF EXISTS SalesDaily CASCADE;
+DROP TABLE IF EXISTS SalesHourlyCustomers CASCADE;
+DROP TABLE IF EXISTS SalesDailyCustomers CASCADE;
+DROP TABLE IF EXISTS SalesRollupFeed CASCADE;
+DROP TABLE IF EXISTS SalesRollupBackfill CASCADE;
+DROP TABLE IF EXISTS SalesRollupQueue CASCADE;
+DROP TABLE IF EXISTS SalesSketches CASCADE;
 
 CREATE TABLE Users ( userID serial,
-                     name char(50) NOT NULL,
-                     password char(11) NOT NULL,    
+                     name varchar(50) NOT NULL,
+                     password varchar(11) NOT NULL,    
 					 latitude decimal(8,6) NOT NULL,
                      longitude decimal(9,6) NOT NULL,
-                     type char(10) NOT NULL,  -- type can be 'customer', 'manager', 'admin' 
+                     type varchar(10) NOT NULL,  -- type can be 'customer', 'manager', 'admin' 
                      PRIMARY KEY(userID)
 );
 
 
 CREATE TABLE Store ( storeID integer, 
-                     name char(30) NOT NULL,
+                     name varchar(30) NOT NULL,
                      latitude decimal(8, 6) NOT NULL,
                      longitude decimal(9, 6) NOT NULL,
                      managerID integer NOT NULL,
@@ -27,59 +38,205 @@ CREATE TABLE Store ( storeID integer,
 );
 
 CREATE TABLE Product ( storeID integer NOT NULL, 
-                       productName char(30) NOT NULL,
+                       productName varchar(30) NOT NULL,
                        numberOfUnits integer NOT NULL,
                        pricePerUnit float NOT NULL,
+                       productID serial NOT NULL,   -- surrogate key the child tables reference
                        PRIMARY KEY(storeID, productName), 
+                       UNIQUE(productID),
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
 		               ON DELETE CASCADE
 );
 
+-- Units of a hot product handed out to slots, so concurrent orders take
+-- them from different rows. Product.numberOfUnits holds the units not in a
+-- slot; ProductStock adds both up.
+CREATE TABLE ProductStockSlots (
+                       productID integer NOT NULL,
+                       slot integer NOT NULL,
+                       units integer NOT NULL CHECK (units >= 0),
+                       PRIMARY KEY(productID, slot),
+                       FOREIGN KEY(productID) REFERENCES Product(productID)
+                       ON DELETE CASCADE
+);
+
+CREATE VIEW ProductStock AS
+SELECT P.storeID, P.productName,
+       P.numberOfUnits + COALESCE((SELECT sum(S.units) FROM ProductStockSlots S WHERE S.productID = P.productID), 0)::integer AS numberOfUnits,
+       P.pricePerUnit, P.productID
+FROM Product P;
+
 CREATE TABLE Warehouse ( WarehouseID integer,
                          area integer,
                          latitude decimal(8,6) NOT NULL,
                          longitude decimal(9,6)  NOT NULL,
                          PRIMARY KEY(WarehouseID));
 
+-- Orders, ProductSupplyRequests and ProductUpdates hold only the productID
+-- of their product; listings join Product for the store and the name.
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
-                     storeID integer NOT NULL,
-                     productName char(30) NOT NULL, 
+                     productID integer NOT NULL,
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
                      PRIMARY KEY(orderNumber),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
-                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                     FOREIGN KEY(productID) REFERENCES Product(productID)
+);
+
+-- Client request keys of submitted orders, so a retried submission returns
+-- the original order instead of placing a second one.
+CREATE TABLE OrderRequestKeys (
+                     customerID integer NOT NULL,
+                     requestKey varchar(64) NOT NULL,
+                     orderNumber integer NOT NULL,
+                     createdOn timestamp NOT NULL,
+                     PRIMARY KEY(customerID, requestKey),
+                     FOREIGN KEY(customerID) REFERENCES Users(userID),
+                     FOREIGN KEY(orderNumber) REFERENCES Orders(orderNumber)
+                     ON DELETE CASCADE
+);
+
+-- Salted password hashes ('pbkdf2-sha256$iterations$salt$hash'). Users.password
+-- is cleared once a user's hash is stored, on their first login.
+CREATE TABLE UserCredentials (
+                     userID integer NOT NULL,
+                     passwordHash varchar(128) NOT NULL,
+                     updatedOn timestamp NOT NULL,
+                     PRIMARY KEY(userID),
+                     FOREIGN KEY(userID) REFERENCES Users(userID)
+                     ON DELETE CASCADE
 );
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
 							   managerID integer NOT NULL,    --User ID of the Manager who makes the supply request
 							   warehouseID integer NOT NULL,
-                               storeID integer NOT NULL,
-                               productName char(30) NOT NULL, 
+                               productID integer NOT NULL,
 							   unitsRequested integer NOT NULL,
                                PRIMARY KEY(requestNumber),
 							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
                                FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
-                               FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                               FOREIGN KEY(productID) REFERENCES Product(productID)
 );
 
 CREATE TABLE ProductUpdates (
 	 						updateNumber serial,	
 							managerID integer NOT NULL,
-                        	storeID integer NOT NULL,
-                       		productName char(30) NOT NULL, 
+                            productID integer NOT NULL,
                             updatedOn timestamp NOT NULL,
                         	PRIMARY KEY(updateNumber),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
-                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                        	FOREIGN KEY(productID) REFERENCES Product(productID)
 );
 
+-- Units sold, revenue and distinct customers per store, product and hour
+-- or day, kept up to date by the order processes so sales reports do not
+-- scan Orders. The *Customers tables hold who bought in a bucket, so a
+-- customer is counted once however many orders they place in it.
+CREATE TABLE SalesHourly (
+                       storeID integer NOT NULL,
+                       bucket timestamp NOT NULL,
+                       productName varchar(30) NOT NULL,
+                       unitsSold integer NOT NULL,
+                       revenue float NOT NULL,
+                       customers integer NOT NULL,
+                       PRIMARY KEY(storeID, bucket, productName)
+);
+
+CREATE TABLE SalesDaily (
+                       storeID integer NOT NULL,
+                       bucket date NOT NULL,
+                       productName varchar(30) NOT NULL,
+                       unitsSold integer NOT NULL,
+                       revenue float NOT NULL,
+                       customers integer NOT NULL,
+                       PRIMARY KEY(storeID, bucket, productName)
+);
+
+CREATE TABLE SalesHourlyCustomers (
+                       storeID integer NOT NULL,
+                       bucket timestamp NOT NULL,
+                       productName varchar(30) NOT NULL,
+                       customerID integer NOT NULL,
+                       PRIMARY KEY(storeID, bucket, productName, customerID)
+);
+
+CREATE TABLE SalesDailyCustomers (
+                       storeID integer NOT NULL,
+                       bucket date NOT NULL,
+                       productName varchar(30) NOT NULL,
+                       customerID integer NOT NULL,
+                       PRIMARY KEY(storeID, bucket, productName, customerID)
+);
 
-CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
-RETURNS decimal AS $dist$
-BEGIN RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
+-- Mergeable summary of the orders of a store on a day: a HyperLogLog of
+-- the customers and the top products and customers by units (SalesSketch).
+CREATE TABLE SalesSketches (
+                       storeID integer NOT NULL,
+                       bucket date NOT NULL,
+                       sketch bytea NOT NULL,
+                       PRIMARY KEY(storeID, bucket)
+);
+
+-- When the feed of the rollups started and the last order placed before.
+-- Every later order is queued in SalesRollupQueue and rolled up by the
+-- flush; the orders up to queuedAfter are rolled up by the backfill, one
+-- day at a time.
+CREATE TABLE SalesRollupFeed (
+                       feed integer NOT NULL CHECK (feed = 1),
+                       fedSince timestamp NOT NULL,
+                       queuedAfter integer NOT NULL,
+                       PRIMARY KEY(feed)
+);
+
+CREATE TABLE SalesRollupBackfill (
+                       day date NOT NULL,
+                       rolledUpOn timestamp NOT NULL,
+                       PRIMARY KEY(day)
+);
+
+-- Orders not rolled up yet, with the price they were placed at. Filled by
+-- a trigger in the order's own transaction once the feed has started, and
+-- emptied by the flush that rolls them up. Once the feed has started some
+-- process must flush (retail.rollups.interval, or SalesRollups run
+-- periodically), or the queue keeps growing.
+CREATE TABLE SalesRollupQueue (
+                       orderNumber integer NOT NULL,
+                       pricePerUnit float NOT NULL,
+                       PRIMARY KEY(orderNumber),
+                       FOREIGN KEY(orderNumber) REFERENCES Orders(orderNumber)
+                       ON DELETE CASCADE
+);
+
+CREATE OR REPLACE FUNCTION queue_sale() RETURNS trigger AS $queue$
+BEGIN
+   IF EXISTS (SELECT 1 FROM SalesRollupFeed) THEN
+      INSERT INTO SalesRollupQueue (orderNumber, pricePerUnit)
+      SELECT NEW.orderNumber, P.pricePerUnit FROM Product P WHERE P.productID = NEW.productID;
+   END IF;
+   RETURN NULL;
 END;
-$dist$ LANGUAGE plpgsql;
+$queue$ LANGUAGE plpgsql;
+
+CREATE TRIGGER orders_queue_sale AFTER INSERT ON Orders
+FOR EACH ROW EXECUTE FUNCTION queue_sale();
+
+
+DROP FUNCTION IF EXISTS calculate_distance(decimal, decimal, decimal, decimal);
+
+-- Euclidean distance between two coordinate pairs, in coordinate units.
+-- Plain SQL and IMMUTABLE so the planner inlines it and it can be used in
+-- index expressions.
+CREATE OR REPLACE FUNCTION calculate_distance(lat1 double precision, long1 double precision, lat2 double precision, long2 double precision)
+RETURNS double precision AS $dist$
+   SELECT point(lat1, long1) <-> point(lat2, long2);
+$dist$ LANGUAGE sql IMMUTABLE PARALLEL SAFE;
+
+-- Great-circle (haversine) distance between two coordinate pairs, in miles.
+CREATE OR REPLACE FUNCTION calculate_distance_miles(lat1 double precision, long1 double precision, lat2 double precision, long2 double precision)
+RETURNS double precision AS $dist$
+   SELECT 2 * 3958.8 * asin(least(1.0, sqrt(power(sin(radians(lat2 - lat1) / 2), 2)
+                                             + cos(radians(lat1)) * cos(radians(lat2)) * power(sin(radians(long2 - long1) / 2), 2))));
+$dist$ LANGUAGE sql IMMUTABLE PARALLEL SAFE;
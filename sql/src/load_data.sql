@@ -1,32 +1,45 @@
-COPY Users
+COPY Users (userID, name, password, latitude, longitude, type)
 FROM '/extra/jcoro045/CS166_Lab1/CS166_Project/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE users_userID_seq RESTART 101;
 
-COPY Store
+COPY Store (storeID, name, latitude, longitude, managerID, dateEstablished)
 FROM '/extra/jcoro045/CS166_Lab1/CS166_Project/data/stores.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Product
+COPY Product (storeID, productName, numberOfUnits, pricePerUnit)
 FROM '/extra/jcoro045/CS166_Lab1/CS166_Project/data/products.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Warehouse
+COPY Warehouse (WarehouseID, area, latitude, longitude)
 FROM '/extra/jcoro045/CS166_Lab1/CS166_Project/data/warehouse.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Orders
+-- the files name the product by store and name; the tables keep its productID.
+CREATE TEMP TABLE OrdersCsv (orderNumber integer, customerID integer, storeID integer, productName varchar(30), unitsOrdered integer, orderTime timestamp);
+COPY OrdersCsv
 FROM '/extra/jcoro045/CS166_Lab1/CS166_Project/data/orders.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO Orders (orderNumber, customerID, productID, unitsOrdered, orderTime)
+SELECT C.orderNumber, C.customerID, P.productID, C.unitsOrdered, C.orderTime
+FROM OrdersCsv C JOIN Product P ON P.storeID = C.storeID AND P.productName = C.productName;
 ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
 
 
-COPY ProductSupplyRequests
+CREATE TEMP TABLE ProductSupplyRequestsCsv (requestNumber integer, managerID integer, warehouseID integer, storeID integer, productName varchar(30), unitsRequested integer);
+COPY ProductSupplyRequestsCsv
 FROM '/extra/jcoro045/CS166_Lab1/CS166_Project/data/productSupplyRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, productID, unitsRequested)
+SELECT C.requestNumber, C.managerID, C.warehouseID, P.productID, C.unitsRequested
+FROM ProductSupplyRequestsCsv C JOIN Product P ON P.storeID = C.storeID AND P.productName = C.productName;
 ALTER SEQUENCE productsupplyrequests_requestNumber_seq RESTART 11;
 
-COPY ProductUpdates
+CREATE TEMP TABLE ProductUpdatesCsv (updateNumber integer, managerID integer, storeID integer, productName varchar(30), updatedOn timestamp);
+COPY ProductUpdatesCsv
 FROM '/extra/jcoro045/CS166_Lab1/CS166_Project/data/productUpdates.csv'
 WITH DELIMITER ',' CSV HEADER;
+INSERT INTO ProductUpdates (updateNumber, managerID, productID, updatedOn)
+SELECT C.updateNumber, C.managerID, P.productID, C.updatedOn
+FROM ProductUpdatesCsv C JOIN Product P ON P.storeID = C.storeID AND P.productName = C.productName;
 ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;